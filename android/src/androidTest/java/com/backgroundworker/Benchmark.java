@@ -0,0 +1,43 @@
+package com.backgroundworker;
+
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Times a sample many times after a warm up, the median is reported so a GC pause doesn't skew it
+ */
+final class Benchmark {
+
+    private static final String TAG = "Benchmark";
+    private static final int WARMUP = 100;
+
+    interface Sample {
+        /**
+         * @param iteration the sample's number, can be used to keep samples apart
+         * @return how long the measured part took, in nanoseconds
+         */
+        long run(int iteration) throws Exception;
+    }
+
+    private Benchmark() {}
+
+    static long median(int runs, Sample sample) throws Exception {
+        for (int i = 0; i < WARMUP; i++) sample.run(i);
+
+        long[] samples = new long[runs];
+        for (int i = 0; i < runs; i++) samples[i] = sample.run(WARMUP + i);
+        Arrays.sort(samples);
+        return samples[runs / 2];
+    }
+
+    /**
+     * Logs the timings under the "Benchmark" tag, read them with adb logcat -s Benchmark
+     */
+    static void report(String name, String before, long beforeNanos, String after, long afterNanos) {
+        Log.i(TAG, String.format(Locale.US, "%s: %s %.1f µs, %s %.1f µs (%.1fx)",
+                name, before, beforeNanos / 1000.0, after, afterNanos / 1000.0, (double) beforeNanos / afterNanos));
+    }
+
+}
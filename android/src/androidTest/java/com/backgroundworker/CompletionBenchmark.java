@@ -0,0 +1,98 @@
+package com.backgroundworker;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.work.ListenableWorker.Result;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import io.reactivex.Single;
+import io.reactivex.disposables.Disposable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Latency of handing a JS result to its work, from the moment the module receives it until the work has its Result
+ */
+@RunWith(AndroidJUnit4.class)
+public class CompletionBenchmark {
+
+    private static final int RUNS = 1000;
+    private static final long TIMEOUT_SECONDS = 5;
+    private static final String VALUE = "{\"uploaded\":true}";
+
+    @Test
+    public void resultPath() throws Exception {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+
+        // Before: result() broadcast an intent that every running work filtered with its own receiver
+        long broadcast = Benchmark.median(RUNS, iteration -> {
+            String id = UUID.randomUUID().toString();
+            CountDownLatch received = new CountDownLatch(1);
+            AtomicLong end = new AtomicLong();
+            BroadcastReceiver receiver = new BroadcastReceiver() {
+                @Override
+                public void onReceive(Context receiverContext, Intent intent) {
+                    BackgroundWorker.toResult(intent.getStringExtra("value"), intent.getStringExtra("result"));
+                    end.set(System.nanoTime());
+                    received.countDown();
+                }
+            };
+            context.registerReceiver(receiver, new IntentFilter(id + "result"));
+            try {
+                long start = System.nanoTime();
+                context.sendBroadcast(new Intent(id + "result").putExtra("value", VALUE).putExtra("result", "success"));
+                assertTrue("Broadcast not received", received.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+                return end.get() - start;
+            } finally {
+                context.unregisterReceiver(receiver);
+            }
+        });
+
+        // After: result() completes the work's emitter in place
+        long registry = Benchmark.median(RUNS, iteration -> {
+            String id = UUID.randomUUID().toString();
+            AtomicLong end = new AtomicLong();
+            Disposable work = Single.<Result>create(emitter -> CompletionRegistry.register(id, 0, emitter))
+                    .subscribe(result -> end.set(System.nanoTime()));
+            long start = System.nanoTime();
+            assertTrue(CompletionRegistry.complete(id, 0, BackgroundWorker.toResult(VALUE, "success")));
+            work.dispose();
+            return end.get() - start;
+        });
+
+        Benchmark.report("result path, median of " + RUNS, "broadcast", broadcast, "registry", registry);
+        assertTrue(registry < broadcast);
+    }
+
+    @Test
+    public void lateResultOfPreviousAttemptIsIgnored() {
+        String id = UUID.randomUUID().toString();
+        AtomicReference<Result> completed = new AtomicReference<>();
+        Disposable work = Single.<Result>create(emitter -> CompletionRegistry.register(id, 1, emitter))
+                .subscribe(completed::set);
+
+        assertFalse(CompletionRegistry.complete(id, 0, Result.success()));
+        assertNull(completed.get());
+
+        assertTrue(CompletionRegistry.complete(id, 1, Result.retry()));
+        assertEquals(Result.retry(), completed.get());
+        work.dispose();
+    }
+
+}
@@ -0,0 +1,62 @@
+package com.backgroundworker;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.content.Context;
+import android.os.Build;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.SdkSuppress;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Per task overhead of the headless service's foreground notification, the startForeground call both make is left out
+ */
+@RunWith(AndroidJUnit4.class)
+@SdkSuppress(minSdkVersion = Build.VERSION_CODES.O)
+public class NotificationBenchmark {
+
+    private static final int RUNS = 1000;
+    private static final String WORKER = "upload";
+
+    @Test
+    public void notificationPerTask() throws Exception {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        NotificationManager manager = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+
+        // Before: every task created its channel, looked its icon up and built its notification from scratch
+        long perTask = Benchmark.median(RUNS, iteration -> {
+            long start = System.nanoTime();
+            manager.createNotificationChannel(new NotificationChannel(WORKER, WORKER, NotificationManager.IMPORTANCE_MIN));
+            int icon = context.getResources().getIdentifier(WORKER, "drawable", context.getPackageName());
+            Notification notification = new Notification.Builder(context, WORKER)
+                    .setWhen(System.currentTimeMillis())
+                    .setContentText("Task " + iteration)
+                    .setContentTitle("Uploading")
+                    .setSmallIcon(icon != 0 ? icon : android.R.drawable.ic_menu_info_details)
+                    .build();
+            long elapsed = System.nanoTime() - start;
+            assertNotNull(notification);
+            return elapsed;
+        });
+
+        // After: a service keeps its worker's builder and only sets the texts
+        WorkerNotifications notifications = new WorkerNotifications(context);
+        long cached = Benchmark.median(RUNS, iteration -> {
+            long start = System.nanoTime();
+            Notification notification = notifications.build(WORKER, "Uploading", "Task " + iteration);
+            long elapsed = System.nanoTime() - start;
+            assertNotNull(notification);
+            return elapsed;
+        });
+
+        Benchmark.report("notification per task, median of " + RUNS, "from scratch", perTask, "cached", cached);
+    }
+
+}
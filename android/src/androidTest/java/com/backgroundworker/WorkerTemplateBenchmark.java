@@ -0,0 +1,78 @@
+package com.backgroundworker;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.work.Constraints;
+import androidx.work.Data;
+import androidx.work.OneTimeWorkRequest;
+
+import com.facebook.react.bridge.JavaOnlyMap;
+import com.facebook.react.bridge.ReadableMap;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Cost of building the request for each enqueued payload, from the worker configuration JS registered
+ */
+@RunWith(AndroidJUnit4.class)
+public class WorkerTemplateBenchmark {
+
+    private static final int ENQUEUES = 10000;
+    private static final String PAYLOAD = "{\"user\":42,\"action\":\"sync\"}";
+
+    private static ReadableMap worker() {
+        return JavaOnlyMap.of(
+                "name", "sync",
+                "type", "queue",
+                "timeout", 10.0,
+                "foregroundBehaviour", "blocking",
+                "repeatInterval", 15.0,
+                "title", "Syncing",
+                "text", "Your data is being synced"
+        );
+    }
+
+    private static ReadableMap constraints() {
+        return JavaOnlyMap.of("network", "connected", "battery", "notLow");
+    }
+
+    @Test
+    public void requestPerEnqueue() throws Exception {
+        PayloadStore store = PayloadStore.getInstance(InstrumentationRegistry.getInstrumentation().getTargetContext());
+        ReadableMap worker = worker();
+        // Constraints were already parsed once at registration before the template
+        Constraints constraints = Parser.getConstraints(constraints());
+        WorkerTemplate template = WorkerTemplate.compile(worker(), constraints());
+
+        // Before: the stored ReadableMap was converted and copied into new Data for every payload
+        long perMap = Benchmark.median(ENQUEUES, iteration -> {
+            long start = System.nanoTime();
+            Data inputData = new Data.Builder()
+                    .putAll(worker.toHashMap())
+                    .putString("payload", PAYLOAD)
+                    .build();
+            OneTimeWorkRequest request = new OneTimeWorkRequest.Builder(BackgroundWorker.class)
+                    .setInputData(inputData)
+                    .setConstraints(constraints)
+                    .build();
+            long elapsed = System.nanoTime() - start;
+            assertEquals(PAYLOAD, request.getWorkSpec().input.getString("payload"));
+            return elapsed;
+        });
+
+        // After: the payload is merged into the template compiled at registration
+        long perTemplate = Benchmark.median(ENQUEUES, iteration -> {
+            long start = System.nanoTime();
+            OneTimeWorkRequest request = template.newRequest(PAYLOAD, store);
+            long elapsed = System.nanoTime() - start;
+            assertEquals(PAYLOAD, request.getWorkSpec().input.getString("payload"));
+            return elapsed;
+        });
+
+        Benchmark.report("request per enqueue, median of " + ENQUEUES, "ReadableMap", perMap, "template", perTemplate);
+    }
+
+}
@@ -1,10 +1,9 @@
 package com.backgroundworker;
 
-import android.content.BroadcastReceiver;
 import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
 import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Base64;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
@@ -13,17 +12,33 @@ import androidx.work.RxWorker;
 import androidx.work.WorkerParameters;
 
 import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.ReactApplicationContext;
+import com.facebook.react.bridge.WritableMap;
 import com.facebook.react.modules.core.DeviceEventManagerModule;
 
+import java.io.IOException;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
 
+import io.reactivex.Completable;
 import io.reactivex.Single;
 
 public class BackgroundWorker extends RxWorker {
     private static final String TAG = "BackgroundWorker";
+    // Works are stopped by the system after 10 minutes, longer waits go through WorkManager's backoff instead
+    private static final long MAX_RATE_LIMIT_WAIT = TimeUnit.MINUTES.toMillis(5);
+    private static final long MAX_DEADLINE = TimeUnit.MINUTES.toMillis(9);
+    // Leaves the task's own timeout room to fire first when it ends at MAX_DEADLINE
+    private static final long MAX_RUN = MAX_DEADLINE + TimeUnit.SECONDS.toMillis(30);
+    private static final String TIMEOUT_REASON = "timeout";
+    private static final long BOOT_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+    // Reported by JS when only some of a batch's payloads are retried, the value holds those payloads, their indices
+    // in the batch and the results of the others
+    static final String RETRY_ITEMS = "retryItems";
+    private static final String[] HEADLESS_KEYS = {"name", "title", "text", "timeout", "keepAlive", "headlessConcurrency"};
     private final Map<String, Object> worker;
     private final String id;
-    private BroadcastReceiver receiver;
 
     public BackgroundWorker(@NonNull Context appContext, @NonNull WorkerParameters workerParams) {
         super(appContext, workerParams);
@@ -34,93 +49,284 @@ public class BackgroundWorker extends RxWorker {
     @NonNull
     @Override
     public Single<Result> createWork() {
-        if (BackgroundWorkerModule.context == null) {
-            Log.w(TAG, "React context is null, retrying work");
-            return Single.just(Result.retry());
-        }
-
         String name = (String) worker.get("name");
-        String payload = (String) worker.get("payload");
+        String payloadRef = (String) worker.get("payloadRef");
+        String payloadSlot = (String) worker.get("payloadSlot");
 
         if (name == null) {
             Log.e(TAG, "Worker name is null");
             return Single.just(Result.failure());
         }
 
-        Bundle extras = new Bundle();
-        extras.putString("id", id);
-        if (payload != null) extras.putString("payload", payload);
+        // The waits and the JS task share one deadline, so the work always ends before the system stops it
+        long deadline = SystemClock.elapsedRealtime() + MAX_DEADLINE;
+
+        // The waits wrapped around it below complete on whatever thread ended them, the main thread for the app going
+        // to background, the bridge for a released permit, so the work is handed back to a worker thread before reading
+        // its payload
+        Single<Result> work = Single.defer(() -> limitRate(name, payloadRef, deadline))
+                .subscribeOn(getBackgroundScheduler());
+
+        // Blocking works wait in background instead of burning an attempt each time they start in foreground, as long
+        // as only a few of them hold a slot while waiting
+        if ("blocking".equals(worker.get("foregroundBehaviour"))) {
+            Single<Result> blocked = work;
+            work = ProcessState.isForeground().flatMap(isForeground -> {
+                if (!isForeground) return blocked;
+                Completable parked = ProcessState.park();
+                if (parked == null) {
+                    Metrics.increment("blocking.retried");
+                    return Single.just(Result.retry());
+                }
+                Metrics.increment("blocking.deferred");
+                long start = SystemClock.elapsedRealtime();
+                return parked
+                        .doOnComplete(() -> Metrics.add("blocking.deferMillis", SystemClock.elapsedRealtime() - start))
+                        .andThen(blocked);
+            });
+        }
+
+        // After a cold start React is booted here instead of waiting through the backoff, only a failed boot is
+        // retried here, errors of the work itself are left to WorkManager
+        Single<Result> booted = work;
+        work = ReactBooter.awaitWorker(getApplicationContext(), name, BOOT_TIMEOUT)
+                .toSingleDefault(true)
+                .onErrorReturn(error -> {
+                    Log.w(TAG, "React or worker " + name + " not ready, retrying work", error);
+                    Metrics.increment("boot.failed");
+                    return false;
+                })
+                .flatMap(ready -> ready ? booted : Single.just(Result.retry()));
+
+        // The permit is taken before any other wait, so the works of a worker with a concurrency never hold more
+        // WorkManager slots than it allows plus its waiting ones, and before the rate limit token, so waiting for a
+        // slot doesn't waste tokens. Works turned away by the pool are retried and give their slot back
+        Object concurrency = worker.get("concurrency");
+        if (concurrency instanceof Number && ((Number) concurrency).intValue() > 0) {
+            Object waiting = worker.get("concurrencyWaiting");
+            PermitPool pool = PermitPool.forWorker(
+                    name,
+                    ((Number) concurrency).intValue(),
+                    waiting instanceof Number ? Math.max(0, ((Number) waiting).intValue()) : 0
+            );
+            Single<Result> limited = work;
+            work = pool.acquire()
+                    .flatMapSingleElement(permit -> {
+                        permit.claim();
+                        return limited.doFinally(permit::release);
+                    })
+                    .switchIfEmpty(Single.fromCallable(() -> {
+                        Metrics.increment("concurrency.retried");
+                        return Result.retry();
+                    }));
+        }
+
+        work = work.timeout(MAX_RUN, TimeUnit.MILLISECONDS, Single.fromCallable(() -> {
+            // Still waiting to be dispatched, JS never saw this work so it's simply retried
+            Log.w(TAG, "Work " + id + " couldn't be dispatched in time, retrying work");
+            Metrics.increment("deadline.retried");
+            return Result.retry();
+        }));
+
+        return work.doOnSuccess(result -> {
+            if (Result.retry().equals(result)) return;
+            if (payloadRef != null) PayloadStore.getInstance(getApplicationContext()).release(payloadRef, id);
+            if (payloadSlot != null || isBatch()) CoalescedPayloads.getInstance(getApplicationContext()).release(id);
+        });
+    }
+
+    private Single<Result> limitRate(String name, String payloadRef, long deadline) {
+        long delay = reserveToken(name, deadline - SystemClock.elapsedRealtime());
+        if (delay < 0) {
+            Metrics.increment("rateLimit.retried");
+            return Single.just(Result.retry());
+        }
+        if (delay > 0) {
+            Metrics.increment("rateLimit.delayed");
+            Metrics.add("rateLimit.delayMillis", delay);
+            // Disposed while still waiting when the work is stopped, cancelled or times out
+            return Single.timer(delay, TimeUnit.MILLISECONDS, getBackgroundScheduler())
+                    .doOnDispose(() -> {
+                        Metrics.increment("rateLimit.refunded");
+                        RateLimiter.refund(name);
+                    })
+                    .flatMap(tick -> {
+                        RateLimiter.waited(name);
+                        return dispatch(name, payloadRef, deadline);
+                    });
+        }
+        return dispatch(name, payloadRef, deadline);
+    }
+
+    /**
+     * Waits for a token when the worker is rate limited
+     * @param remaining the time left before the work's deadline
+     * @return the time in milliseconds until the work may be dispatched, -1 if it's too long to wait in this run or
+     * enough works already wait
+     */
+    private long reserveToken(String name, long remaining) {
+        Object tokens = worker.get("rateTokens");
+        Object interval = worker.get("rateInterval");
+        Object burst = worker.get("rateBurst");
+        if (!(tokens instanceof Number) || !(interval instanceof Number) || !(burst instanceof Number)) return 0;
+        if (((Number) tokens).doubleValue() <= 0 || ((Number) interval).longValue() <= 0) return 0;
 
-        return Single.create(emitter -> {
+        return RateLimiter.reserve(
+                name,
+                ((Number) tokens).doubleValue(),
+                ((Number) interval).longValue(),
+                ((Number) burst).doubleValue(),
+                Math.min(MAX_RATE_LIMIT_WAIT, remaining)
+        );
+    }
+
+    /**
+     * The worker's timeout only starts here, it's cut short when the work's deadline comes first
+     */
+    private Single<Result> dispatch(String name, String payloadRef, long deadline) {
+        long timeout = Math.max(0, Math.min(getTimeout(), deadline - SystemClock.elapsedRealtime()));
+        Single<Result> task = runsInApp().flatMap(inApp -> Single.create(emitter -> {
+            String payload;
+            String carried;
             try {
-                receiver = new BroadcastReceiver() {
-                    @Override
-                    public void onReceive(Context context, Intent intent) {
-                        try {
-                            String value = intent.getStringExtra("value");
-                            String result = intent.getStringExtra("result");
-                            
-                            Data outputData = new Data.Builder()
-                                    .putString("value", value)
-                                    .build();
-
-                            if (result == null) {
-                                Log.e(TAG, "Received null result");
-                                emitter.onSuccess(Result.failure(outputData));
-                                return;
-                            }
-
-                            switch (result) {
-                                case "success":
-                                    emitter.onSuccess(Result.success(outputData));
-                                    break;
-                                case "retry":
-                                    emitter.onSuccess(Result.retry());
-                                    break;
-                                default:
-                                    Log.w(TAG, "Unknown result type: " + result);
-                                    emitter.onSuccess(Result.failure(outputData));
-                            }
-                        } catch (Exception e) {
-                            Log.e(TAG, "Error processing broadcast result", e);
-                            emitter.onSuccess(Result.failure());
-                        } finally {
-                            unregisterReceiver();
-                        }
-                    }
-                };
-
-                BackgroundWorkerModule.context.registerReceiver(
-                    receiver, 
-                    new IntentFilter(id + "result")
-                );
-
-                // Emit the event to JS
-                BackgroundWorkerModule.context.getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
-                        .emit(name, Arguments.fromBundle(extras));
+                // A partially retried batch only runs what it carried over, its own payloads aren't needed anymore
+                carried = isBatch() ? CoalescedPayloads.getInstance(getApplicationContext()).carriedOver(id) : null;
+                payload = carried == null ? readPayload(payloadRef) : null;
+            } catch (IOException | DataFormatException e) {
+                Log.e(TAG, "Could not load payload " + payloadRef, e);
+                emitter.onSuccess(Result.failure());
+                return;
+            }
+
+            // JS reports the attempt back with the result, so a late result can't complete a later attempt
+            int attempt = getRunAttemptCount();
+            Bundle extras = new Bundle();
+            extras.putString("id", id);
+            extras.putInt("attempt", attempt);
+            if (payload != null) extras.putString("payload", payload);
+            if (carried != null) extras.putString("carried", carried);
 
+            try {
+                CompletionRegistry.register(id, attempt, emitter);
+                if (inApp) {
+                    Metrics.increment("dispatch.inApp");
+                    DispatchCoalescer.dispatch(name, extras);
+                } else {
+                    Metrics.increment("dispatch.headless");
+                    BackgroundWorkerService.start(getApplicationContext(), headlessExtras(extras));
+                }
             } catch (Exception e) {
                 Log.e(TAG, "Error in work creation", e);
-                unregisterReceiver();
                 emitter.onSuccess(Result.failure());
             }
-        });
+        }));
+
+        return task.timeout(timeout, TimeUnit.MILLISECONDS, Single.fromCallable(() -> expire(name)));
+    }
+
+    /**
+     * Only foreground workers run in the app's JS, and only while it is in foreground, anything else goes to the
+     * headless service without asking JS first
+     */
+    private Single<Boolean> runsInApp() {
+        if (!"foreground".equals(worker.get("foregroundBehaviour"))) return Single.just(false);
+        return ProcessState.isForeground();
+    }
+
+    private Bundle headlessExtras(Bundle extras) {
+        for (String key : HEADLESS_KEYS) {
+            Object value = worker.get(key);
+            if (value instanceof String) extras.putString(key, (String) value);
+            else if (value instanceof Number) extras.putDouble(key, ((Number) value).doubleValue());
+        }
+        return extras;
     }
 
-    private void unregisterReceiver() {
-        if (receiver != null && BackgroundWorkerModule.context != null) {
+    /**
+     * The worker's timeout for the JS task, kept under the system's own limit so the expiry is handled by us
+     */
+    private long getTimeout() {
+        Object timeout = worker.get("timeout");
+        long deadline = timeout instanceof Number
+                ? (long) (((Number) timeout).doubleValue() * TimeUnit.MINUTES.toMillis(1))
+                : MAX_DEADLINE;
+        return deadline > 0 ? Math.min(deadline, MAX_DEADLINE) : MAX_DEADLINE;
+    }
+
+    /**
+     * Called when JS didn't report the task's result in time, JS is told the work was given up on
+     */
+    private Result expire(String name) {
+        Log.w(TAG, "Work " + id + " timed out");
+        Metrics.increment("deadline.expired");
+
+        ReactApplicationContext context = BackgroundWorkerModule.context;
+        if (context != null) {
+            WritableMap event = Arguments.createMap();
+            event.putString("id", id);
+            event.putString("reason", TIMEOUT_REASON);
             try {
-                BackgroundWorkerModule.context.unregisterReceiver(receiver);
+                context.getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class).emit(name + "cancelled", event);
             } catch (Exception e) {
-                Log.w(TAG, "Error unregistering receiver", e);
+                Log.w(TAG, "Could not notify JS about the timeout", e);
             }
-            receiver = null;
         }
+
+        if ("failure".equals(worker.get("timeoutBehaviour")))
+            return Result.failure(new Data.Builder().putString("reason", TIMEOUT_REASON).build());
+        return Result.retry();
     }
 
-    @Override
-    public void onStopped() {
-        unregisterReceiver();
-        super.onStopped();
+    private boolean isBatch() {
+        return "batch".equals(worker.get("type"));
+    }
+
+    /**
+     * Spilled payloads are only read from disk once the work actually runs
+     */
+    private String readPayload(String payloadRef) throws IOException, DataFormatException {
+        String payloadSlot = (String) worker.get("payloadSlot");
+        if (payloadSlot != null) {
+            String payload = CoalescedPayloads.getInstance(getApplicationContext()).take(payloadSlot, id);
+            if (payload == null) Log.w(TAG, "Coalesced payload not found for work " + id);
+            return payload;
+        }
+
+        String payload = (String) worker.get("payload");
+        String encoding = (String) worker.get("payloadEncoding");
+
+        if (payloadRef == null && encoding == null) return payload;
+
+        byte[] bytes = payloadRef != null
+                ? PayloadStore.getInstance(getApplicationContext()).get(payloadRef)
+                : Base64.decode(payload, Base64.NO_WRAP);
+
+        if (PayloadCompressor.DEFLATE.equals(encoding)) bytes = PayloadCompressor.inflate(bytes);
+        return new String(bytes, WorkerTemplate.UTF_8);
+    }
+
+    /**
+     * Maps the result reported by JS to WorkManager's result, the value is stored unless the work is retried
+     */
+    static Result toResult(String value, String result) {
+        Data outputData = new Data.Builder()
+                .putString("value", value)
+                .build();
+
+        if (result == null) {
+            Log.e(TAG, "Received null result");
+            return Result.failure(outputData);
+        }
+
+        switch (result) {
+            case "success":
+                return Result.success(outputData);
+            case "retry":
+            case RETRY_ITEMS:
+                return Result.retry();
+            default:
+                Log.w(TAG, "Unknown result type: " + result);
+                return Result.failure(outputData);
+        }
     }
 }
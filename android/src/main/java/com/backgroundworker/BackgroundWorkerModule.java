@@ -1,21 +1,18 @@
 
 package com.backgroundworker;
 
-import android.content.Intent;
-import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
+import android.util.Log;
 
-import androidx.lifecycle.LiveData;
-import androidx.lifecycle.Observer;
-import androidx.work.Constraints;
-import androidx.work.Data;
 import androidx.work.ExistingPeriodicWorkPolicy;
+import androidx.work.ExistingWorkPolicy;
 import androidx.work.OneTimeWorkRequest;
 import androidx.work.Operation;
 import androidx.work.PeriodicWorkRequest;
 import androidx.work.WorkInfo;
 import androidx.work.WorkManager;
+import androidx.work.WorkQuery;
 import androidx.work.WorkRequest;
 
 import com.facebook.react.bridge.Arguments;
@@ -23,31 +20,77 @@ import com.facebook.react.bridge.Promise;
 import com.facebook.react.bridge.ReactApplicationContext;
 import com.facebook.react.bridge.ReactContextBaseJavaModule;
 import com.facebook.react.bridge.ReactMethod;
+import com.facebook.react.bridge.ReadableArray;
 import com.facebook.react.bridge.ReadableMap;
-import com.facebook.react.modules.core.DeviceEventManagerModule;
+import com.facebook.react.bridge.WritableMap;
 import com.google.common.util.concurrent.ListenableFuture;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import static androidx.work.Operation.State;
 
 public class BackgroundWorkerModule extends ReactContextBaseJavaModule {
 
-    static ReactApplicationContext context;
-    private final Handler handler = new Handler(Looper.getMainLooper());
+    private static final String TAG = "BackgroundWorkerModule";
+    // Unique work key the payloads over a worker's pending cap are coalesced into
+    private static final String OVERFLOW_KEY = "__overflow";
+    // Keeps each query well under SQLite's limit of bound variables
+    private static final int MAX_QUERY_IDS = 500;
+    private static final int IO_THREADS = 2;
+    private static final long IO_KEEP_ALIVE_SECONDS = 30;
 
-    private HashMap<String, ReadableMap> queuedWorkers = new HashMap<>();
-    private HashMap<String, Constraints> queuedConstraints = new HashMap<>();
-    private HashMap<String, Observer<WorkInfo>> listeners = new HashMap<>();
+    private interface ObserverFactory<O extends SharedObserver<?>> {
+        O create(long minInterval);
+    }
 
-    BackgroundWorkerModule(ReactApplicationContext reactContext) {
+    static volatile ReactApplicationContext context;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final CallbackExecutor executor;
+    // Blocking WorkManager calls run here, so they never hold up the callbacks of the other native calls
+    private final ThreadPoolExecutor io;
+    // Serializes coalescing, so two payloads for the same key can't both open a new work
+    private final Object coalescing = new Object();
+    private final PayloadStore payloadStore;
+    private final PayloadBatcher batcher;
+    private final PendingWorks pendingWorks;
+
+    private final ConcurrentHashMap<String, WorkerTemplate> queuedWorkers = new ConcurrentHashMap<>();
+    private final Map<String, WorkInfoListener> listeners = new HashMap<>();
+    private final Map<String, WorkerInfoListener> workerListeners = new HashMap<>();
+
+    BackgroundWorkerModule(ReactApplicationContext reactContext, int callbackThreads) {
         super(reactContext);
         context = reactContext;
+        executor = new CallbackExecutor(callbackThreads);
+        io = new ThreadPoolExecutor(IO_THREADS, IO_THREADS, IO_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, "BackgroundWorker-io");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        io.allowCoreThreadTimeOut(true);
+        payloadStore = PayloadStore.getInstance(reactContext);
+        payloadStore.sweep();
+        io.execute(() -> CoalescedPayloads.getInstance(reactContext).sweep());
+        batcher = new PayloadBatcher(reactContext, payloadStore, executor);
+        pendingWorks = new PendingWorks(reactContext);
     }
 
     @Nonnull
@@ -58,12 +101,20 @@ public class BackgroundWorkerModule extends ReactContextBaseJavaModule {
 
     @Override
     public void onCatalystInstanceDestroy() {
-        for (String id : listeners.keySet()) removeListener(id);
+        unsubscribeAll(listeners);
+        unsubscribeAll(workerListeners);
+        batcher.shutdown();
+        pendingWorks.unwatchAll();
+        ReactBooter.reset();
+        // Works would otherwise keep being dispatched to a dead instance instead of booting a new one
+        if(context == getReactApplicationContext()) context = null;
+        executor.shutdown();
+        io.shutdown();
         super.onCatalystInstanceDestroy();
     }
 
     /**
-     * If the worker is queued, stores the worker information to be registered when enqueued
+     * If the worker is queued or batched, stores the worker information to be registered when enqueued
      * if the worker is periodic, registers it and send back it's id
      * @param worker the worker information to be registered
      * @param constraints the worker constraints
@@ -71,11 +122,6 @@ public class BackgroundWorkerModule extends ReactContextBaseJavaModule {
      */
     @ReactMethod
     public void registerWorker(ReadableMap worker, ReadableMap constraints, Promise p) {
-        if (Looper.myLooper() != Looper.getMainLooper()) {
-            handler.post(() -> registerWorker(worker, constraints, p));
-            return;
-        }
-
         try {
             String type = worker.getString("type");
             String name = worker.getString("name");
@@ -85,27 +131,29 @@ public class BackgroundWorkerModule extends ReactContextBaseJavaModule {
                 return;
             }
 
-            if(type.equals("queue")) {
-                Constraints _constraints = Parser.getConstraints(constraints);
-                if(_constraints!=null) queuedConstraints.put(name, _constraints);
-                queuedWorkers.put(name, worker);
-                p.resolve(null);
+            ReactBooter.workerRegistered(name);
+
+            if(type.equals("queue") || type.equals("batch")) {
+                WorkerTemplate template = WorkerTemplate.compile(worker, constraints);
+                if(!template.isCapped()) {
+                    pendingWorks.unwatch(name);
+                    queuedWorkers.put(name, template);
+                    p.resolve(null);
+                    return;
+                }
+                // The worker only takes payloads once its backlog is loaded, otherwise the first enqueues miss the cap
+                io.execute(() -> {
+                    pendingWorks.watch(name);
+                    queuedWorkers.put(name, template);
+                    p.resolve(null);
+                });
                 return;
             }
 
             if(type.equals("periodic")) {
                 int repeatInterval = worker.getInt("repeatInterval");
-                Constraints _constraints = Parser.getConstraints(constraints);
-
-                PeriodicWorkRequest.Builder builder = new PeriodicWorkRequest.Builder(BackgroundWorker.class, Math.max(15, repeatInterval), TimeUnit.MINUTES);
-                if(_constraints!=null) builder.setConstraints(_constraints);
-
-                Data inputData = new Data.Builder()
-                        .putAll(worker.toHashMap())
-                        .build();
-
-                builder.setInputData(inputData);
-                PeriodicWorkRequest request = builder.build();
+                PeriodicWorkRequest request = WorkerTemplate.compile(worker, constraints)
+                        .newPeriodicRequest(Math.max(15, repeatInterval));
 
                 Operation operation = WorkManager.getInstance(context)
                     .enqueueUniquePeriodicWork(name, ExistingPeriodicWorkPolicy.REPLACE, request);
@@ -113,11 +161,11 @@ public class BackgroundWorkerModule extends ReactContextBaseJavaModule {
                 operation.getResult().addListener(() -> {
                     try {
                         operation.getResult().get();
-                        handler.post(() -> p.resolve(request.getId().toString()));
+                        p.resolve(request.getId().toString());
                     } catch (Exception e) {
-                        handler.post(() -> p.reject("REGISTER_ERROR", "Failed to register periodic work: " + e.getMessage()));
+                        p.reject("REGISTER_ERROR", "Failed to register periodic work: " + e.getMessage());
                     }
-                }, Executors.newSingleThreadExecutor());
+                }, executor);
                 return;
             }
             p.reject("ERROR", "incompatible worker type: " + type);
@@ -126,6 +174,23 @@ public class BackgroundWorkerModule extends ReactContextBaseJavaModule {
         }
     }
 
+    /**
+     * Applies the worker's overflow policy to new works that would go over its pending cap, the room of the admitted
+     * works is reserved until they're added to the pending works or the admission is released
+     * @param count how many works are about to be enqueued
+     * @param p the promise rejected with QUEUE_FULL when the works can't be taken
+     * @return what to do with the new works, null if they were rejected
+     */
+    @Nullable
+    private PendingWorks.Admission admit(WorkerTemplate worker, int count, Promise p) {
+        PendingWorks.Admission admission = pendingWorks.admit(worker.name, count, worker.maxPending, worker.overflowPolicy);
+        if(admission != null) return admission;
+
+        Metrics.increment("backpressure.rejected");
+        p.reject("QUEUE_FULL", worker.name + " already has " + pendingWorks.depth(worker.name) + " pending works");
+        return null;
+    }
+
     /**
      * Enqueues payloads to a queued worker and returns the work's id
      * @param worker name of the worker that will process the payload
@@ -134,75 +199,492 @@ public class BackgroundWorkerModule extends ReactContextBaseJavaModule {
      */
     @ReactMethod
     public void enqueue(String worker, String payload, Promise p) {
-        // Ensure we're running on the right thread for React Native bridge operations
-        if (Looper.myLooper() != Looper.getMainLooper()) {
-            handler.post(() -> enqueue(worker, payload, p));
+        WorkerTemplate _worker = queuedWorkers.get(worker);
+
+        if(_worker==null) {
+            p.reject("ERROR", "worker not registered");
+            return;
+        }
+
+        if(_worker.isBatch()) {
+            batcher.add(_worker, payload, new PayloadBatcher.Callback() {
+                @Override
+                public void onEnqueued(String id, int index) {
+                    p.resolve(id);
+                }
+
+                @Override
+                public void onError(Exception e) {
+                    p.reject("ENQUEUE_ERROR", "Failed to enqueue work: " + e.getMessage());
+                }
+            });
             return;
         }
 
-        ReadableMap _worker = queuedWorkers.get(worker);
-        Constraints _constraints = queuedConstraints.get(worker);
+        PendingWorks.Admission admission = admit(_worker, 1, p);
+        if(admission == null) return;
+
+        if(admission.admitted == 0) {
+            io.execute(() -> {
+                try {
+                    p.resolve(coalesce(_worker, worker + ":" + OVERFLOW_KEY, payload, admission));
+                } catch (Exception e) {
+                    p.reject("ENQUEUE_ERROR", "Failed to coalesce work: " + e.getMessage());
+                }
+            });
+            return;
+        }
+
+        String requested = null;
+        try {
+            WorkRequest request = _worker.newRequest(payload, payloadStore);
+            String id = request.getId().toString();
+            requested = id;
+            pendingWorks.add(admission, id);
+
+            // Enqueue the work and handle the operation result
+            Operation operation = WorkManager.getInstance(context).enqueue(request);
+            operation.getResult().addListener(() -> {
+                try {
+                    operation.getResult().get();
+                } catch (Exception e) {
+                    pendingWorks.remove(worker, id);
+                    pendingWorks.release(admission);
+                    p.reject("ENQUEUE_ERROR", "Failed to enqueue work: " + e.getMessage());
+                    return;
+                }
+                if(admission.dropped > 0) dropOldest(admission, Collections.singletonList(id));
+                p.resolve(id);
+            }, executor);
+        } catch (Exception e) {
+            // WorkManager will never report this work, it would count against the cap forever
+            if(requested != null) pendingWorks.remove(worker, requested);
+            pendingWorks.release(admission);
+            p.reject("ENQUEUE_ERROR", "Failed to create work request: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Enqueues a payload to a batch worker, the work's value holds one result per payload of the batch
+     * @param worker name of the batch worker that will process the payload
+     * @param payload payload to be enqueued
+     * @param p the promise to send back the id of the batch's work and the payload's position in the batch
+     */
+    @ReactMethod
+    public void enqueueItem(String worker, String payload, Promise p) {
+        WorkerTemplate _worker = queuedWorkers.get(worker);
 
         if(_worker==null) {
             p.reject("ERROR", "worker not registered");
             return;
         }
 
+        if(!_worker.isBatch()) {
+            p.reject("ERROR", "items can only be enqueued to batch workers");
+            return;
+        }
+
+        batcher.add(_worker, payload, new PayloadBatcher.Callback() {
+            @Override
+            public void onEnqueued(String id, int index) {
+                WritableMap item = Arguments.createMap();
+                item.putString("id", id);
+                item.putInt("index", index);
+                p.resolve(item);
+            }
+
+            @Override
+            public void onError(Exception e) {
+                p.reject("ENQUEUE_ERROR", "Failed to enqueue work: " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Enqueues many payloads to a queued worker at once, all requests are submitted to WorkManager in a single
+     * operation so they're persisted in one transaction
+     * @param worker name of the worker that will process the payloads
+     * @param payloads payloads to be enqueued, in order
+     * @param p the promise to send back the works' ids to JS, in the same order as the payloads
+     */
+    @ReactMethod
+    public void enqueueBatch(String worker, ReadableArray payloads, Promise p) {
+        WorkerTemplate _worker = queuedWorkers.get(worker);
+
+        if(_worker==null) {
+            p.reject("ERROR", "worker not registered");
+            return;
+        }
+
+        if(_worker.isBatch()) {
+            enqueueToBatch(_worker, payloads, p);
+            return;
+        }
+
+        PendingWorks.Admission admission = admit(_worker, payloads.size(), p);
+        if(admission == null) return;
+        int admitted = admission.admitted;
+        List<WorkRequest> requests = new ArrayList<>(admitted);
+
         try {
-            Data inputData = new Data.Builder()
-                    .putAll(_worker.toHashMap())
-                    .putString("payload", payload)
-                    .build();
+            List<String> ids = new ArrayList<>(payloads.size());
+            List<String> overflowing = new ArrayList<>();
+
+            for (int i = 0; i < payloads.size(); i++) {
+                String payload = payloads.isNull(i) ? null : payloads.getString(i);
+                if(i >= admitted) {
+                    overflowing.add(payload);
+                    continue;
+                }
+                WorkRequest request = _worker.newRequest(payload, payloadStore);
+                requests.add(request);
+                ids.add(request.getId().toString());
+            }
+            // Only once every request is built, a failed one would otherwise leave the others counted forever
+            for (String id : ids) pendingWorks.add(admission, id);
 
-            OneTimeWorkRequest.Builder builder = new OneTimeWorkRequest.Builder(BackgroundWorker.class)
-                    .setInputData(inputData);
+            if (requests.isEmpty() && overflowing.isEmpty()) {
+                p.resolve(Arguments.createArray());
+                return;
+            }
 
-            if(_constraints!=null) builder.setConstraints(_constraints);
+            // The payloads over the cap are merged into the worker's overflow work once the others are in,
+            // which can't be undone anymore if merging fails
+            List<String> enqueued = new ArrayList<>(ids);
+            Runnable complete = () -> {
+                if(admission.dropped > 0) dropOldest(admission, enqueued);
+                try {
+                    for (String payload : overflowing)
+                        ids.add(coalesce(_worker, worker + ":" + OVERFLOW_KEY, payload, admission));
+                    p.resolve(Arguments.fromList(ids));
+                } catch (Exception e) {
+                    p.reject(requests.isEmpty() ? "ENQUEUE_ERROR" : "PARTIAL_ENQUEUE",
+                            "Failed to coalesce works: " + e.getMessage());
+                }
+            };
 
-            WorkRequest request = builder.build();
+            if (requests.isEmpty()) {
+                io.execute(complete);
+                return;
+            }
 
-            // Enqueue the work and handle the operation result
-            Operation operation = WorkManager.getInstance(context).enqueue(request);
+            // Coalescing blocks on WorkManager, which must happen neither on the callbacks nor on WorkManager's thread
+            Executor completion = overflowing.isEmpty() ? executor : io;
+            Operation operation = WorkManager.getInstance(context).enqueue(requests);
             operation.getResult().addListener(() -> {
                 try {
                     operation.getResult().get();
-                    // Ensure promise resolution happens on the main thread
-                    handler.post(() -> p.resolve(request.getId().toString()));
                 } catch (Exception e) {
-                    handler.post(() -> p.reject("ENQUEUE_ERROR", "Failed to enqueue work: " + e.getMessage()));
+                    for (WorkRequest request : requests) pendingWorks.remove(worker, request.getId().toString());
+                    pendingWorks.release(admission);
+                    p.reject("ENQUEUE_ERROR", "Failed to enqueue works: " + e.getMessage());
+                    return;
                 }
-            }, Executors.newSingleThreadExecutor());
+                complete.run();
+            }, completion);
         } catch (Exception e) {
-            p.reject("ENQUEUE_ERROR", "Failed to create work request: " + e.getMessage());
+            for (WorkRequest request : requests) pendingWorks.remove(worker, request.getId().toString());
+            pendingWorks.release(admission);
+            p.reject("ENQUEUE_ERROR", "Failed to create work requests: " + e.getMessage());
+        }
+    }
+
+    private void enqueueToBatch(WorkerTemplate worker, ReadableArray payloads, Promise p) {
+        final String[] ids = new String[payloads.size()];
+        final AtomicInteger remaining = new AtomicInteger(ids.length);
+        final AtomicBoolean failed = new AtomicBoolean(false);
+
+        if(ids.length == 0) {
+            p.resolve(Arguments.createArray());
+            return;
+        }
+
+        for (int i = 0; i < ids.length; i++) {
+            final int index = i;
+            String payload = payloads.isNull(i) ? null : payloads.getString(i);
+            batcher.add(worker, payload, new PayloadBatcher.Callback() {
+                @Override
+                public void onEnqueued(String id, int position) {
+                    ids[index] = id;
+                    if(remaining.decrementAndGet() == 0 && !failed.get())
+                        p.resolve(Arguments.fromArray(ids));
+                }
+
+                @Override
+                public void onError(Exception e) {
+                    if(failed.compareAndSet(false, true))
+                        p.reject("ENQUEUE_ERROR", "Failed to enqueue works: " + e.getMessage());
+                }
+            });
+        }
+    }
+
+    /**
+     * Enqueues a payload as unique work for the given key, so repeated requests for the same key don't pile up
+     * @param worker name of the worker that will process the payload
+     * @param key identifies the work among this worker's works
+     * @param payload payload to be enqueued
+     * @param policy what to do when there's already unfinished work for the key: keep, replace, append or coalesce,
+     *               the last one merges the payload into the pending work until it is dispatched
+     * @param p the promise to send back the id of the work that will process the payload
+     */
+    @ReactMethod
+    public void enqueueUnique(String worker, String key, String payload, String policy, Promise p) {
+        WorkerTemplate _worker = queuedWorkers.get(worker);
+
+        if(_worker==null) {
+            p.reject("ERROR", "worker not registered");
+            return;
+        }
+
+        if(_worker.isBatch()) {
+            p.reject("ERROR", "unique works are not supported by batch workers");
+            return;
+        }
+
+        String uniqueName = worker + ":" + key;
+
+        // Looking at the key's current works blocks, so it runs on the io executor
+        io.execute(() -> {
+            PendingWorks.Admission admission = null;
+            try {
+                // Only a new work for the key counts against the cap, keep, replace and coalesce reuse an unfinished one
+                admission = _worker.isCapped() && ("append".equals(policy) || !hasUnfinishedWork(uniqueName))
+                        ? admit(_worker, 1, p)
+                        : new PendingWorks.Admission(worker, 1, 0);
+                if(admission == null) return;
+
+                if(admission.admitted == 0) {
+                    p.resolve(coalesce(_worker, worker + ":" + OVERFLOW_KEY, payload, admission));
+                    return;
+                }
+
+                String id = "coalesce".equals(policy)
+                        ? coalesce(_worker, uniqueName, payload, admission)
+                        : enqueueUniqueRequest(_worker, uniqueName, Parser.getExistingWorkPolicy(policy), payload, admission);
+                if(admission.dropped > 0) dropOldest(admission, Collections.singletonList(id));
+                p.resolve(id);
+            } catch (Exception e) {
+                p.reject("ENQUEUE_ERROR", "Failed to enqueue work: " + e.getMessage());
+            } finally {
+                // Nothing is held anymore when the work was added, eg: when merged into a pending work
+                if(admission != null) pendingWorks.release(admission);
+            }
+        });
+    }
+
+    /**
+     * @return the id of the work that will process the payload
+     */
+    private String enqueueUniqueRequest(WorkerTemplate worker, String uniqueName, ExistingWorkPolicy policy,
+                                        String payload, PendingWorks.Admission admission) throws Exception {
+        // REPLACE cancels the key's unfinished works, whose payloads nothing else would release
+        List<UUID> replaced = policy == ExistingWorkPolicy.REPLACE
+                ? getUnfinishedWorks(uniqueName)
+                : Collections.emptyList();
+
+        OneTimeWorkRequest request = worker.newRequest(payload, payloadStore);
+        String id = request.getId().toString();
+        pendingWorks.add(admission, id);
+
+        try {
+            WorkManager.getInstance(context).enqueueUniqueWork(uniqueName, policy, request).getResult().get();
+        } catch (Exception e) {
+            pendingWorks.remove(worker.name, id);
+            throw e;
+        }
+
+        if(!replaced.isEmpty()) releasePayloads(replaced);
+        if(policy != ExistingWorkPolicy.KEEP) return id;
+        String kept = getUniqueWorkId(uniqueName, id);
+        if(!kept.equals(id)) {
+            pendingWorks.remove(worker.name, id);
+            // The discarded request's payload was already spilled to the store
+            for (String tag : request.getTags()) {
+                String ref = PayloadStore.refFromTag(tag);
+                if(ref != null) payloadStore.release(ref, id);
+            }
         }
+        return kept;
     }
 
     /**
-     * Method to delegate the "start headless task" decision to JS so we can easily verify if the app is in foreground
-     * @param workConfiguration The entire info to run the work
+     * Merges the payload into the key's pending work, or enqueues a new work if there's none
+     * @return the id of the work that will process the payload
+     */
+    private String coalesce(WorkerTemplate worker, String uniqueName, String payload,
+                            PendingWorks.Admission admission) throws Exception {
+        CoalescedPayloads slots = CoalescedPayloads.getInstance(context);
+        String slot = CoalescedPayloads.slotFor(uniqueName);
+
+        // The slots' own lock is left free while waiting on WorkManager, works take their slot under it
+        synchronized (coalescing) {
+            String owner = slots.owner(slot);
+            // The owner keeps accepting payloads while running, until it takes the slot right before dispatching
+            if(owner != null && isUnfinished(owner) && slots.merge(slot, owner, payload)) {
+                Metrics.increment("enqueue.coalesced");
+                return owner;
+            }
+
+            OneTimeWorkRequest request = worker.newCoalescedRequest(slot);
+            String id = request.getId().toString();
+            slots.open(slot, id, payload);
+            pendingWorks.add(admission, id);
+
+            try {
+                WorkManager.getInstance(context)
+                        .enqueueUniqueWork(uniqueName, ExistingWorkPolicy.APPEND_OR_REPLACE, request)
+                        .getResult()
+                        .get();
+            } catch (Exception e) {
+                // WorkManager will never report this work, it would count against the cap forever
+                pendingWorks.remove(worker.name, id);
+                throw e;
+            }
+            return id;
+        }
+    }
+
+    /**
+     * @param enqueued the works the room is made for, which are never dropped
+     */
+    private void dropOldest(PendingWorks.Admission admission, Collection<String> enqueued) {
+        List<UUID> dropped = new ArrayList<>();
+        Operation last = null;
+        for (String id : pendingWorks.evictOldest(admission, enqueued)) {
+            Metrics.increment("backpressure.dropped");
+            dropped.add(UUID.fromString(id));
+            last = WorkManager.getInstance(context).cancelWorkById(UUID.fromString(id));
+        }
+        // Cancellations are applied in order, the dropped works are all cancelled once the last one is
+        if (last != null) last.getResult().addListener(() -> releasePayloads(dropped), executor);
+    }
+
+    /**
+     * Collects the blobs and slots of works that finished without running, eg: because they were cancelled,
+     * with one query for those works instead of one per stored payload
+     * @param ids the works' ids
+     */
+    private void releasePayloads(List<UUID> ids) {
+        for (int from = 0; from < ids.size(); from += MAX_QUERY_IDS) {
+            ListenableFuture<List<WorkInfo>> futureInfos = WorkManager.getInstance(context)
+                    .getWorkInfos(WorkQuery.Builder.fromIds(ids.subList(from, Math.min(ids.size(), from + MAX_QUERY_IDS))).build());
+
+            futureInfos.addListener(() -> {
+                try {
+                    CoalescedPayloads slots = CoalescedPayloads.getInstance(context);
+                    for (WorkInfo info : futureInfos.get()) {
+                        if (!info.getState().isFinished()) continue;
+                        String id = info.getId().toString();
+                        slots.release(id);
+                        for (String tag : info.getTags()) {
+                            String ref = PayloadStore.refFromTag(tag);
+                            if (ref != null) payloadStore.release(ref, id);
+                            String slot = CoalescedPayloads.slotFromTag(tag);
+                            if (slot != null) slots.release(slot, id);
+                        }
+                    }
+                } catch (Exception e) {
+                    Log.w(TAG, "Could not release the payloads of cancelled works", e);
+                }
+            }, executor);
+        }
+    }
+
+    private boolean hasUnfinishedWork(String uniqueName) throws Exception {
+        return !getUnfinishedWorks(uniqueName).isEmpty();
+    }
+
+    private List<UUID> getUnfinishedWorks(String uniqueName) throws Exception {
+        List<UUID> unfinished = new ArrayList<>();
+        for (WorkInfo info : WorkManager.getInstance(context).getWorkInfosForUniqueWork(uniqueName).get())
+            if (!info.getState().isFinished()) unfinished.add(info.getId());
+        return unfinished;
+    }
+
+    private boolean isUnfinished(String id) throws Exception {
+        WorkInfo info = WorkManager.getInstance(context).getWorkInfoById(UUID.fromString(id)).get();
+        return info != null && !info.getState().isFinished();
+    }
+
+    /**
+     * When KEEP discards the new request the payload will be handled by the work already there
+     */
+    private String getUniqueWorkId(String uniqueName, String requestId) throws Exception {
+        String unfinished = null;
+        for (WorkInfo info : WorkManager.getInstance(context).getWorkInfosForUniqueWork(uniqueName).get()) {
+            String id = info.getId().toString();
+            if (id.equals(requestId)) return id;
+            if (unfinished == null && !info.getState().isFinished()) unfinished = id;
+        }
+        return unfinished != null ? unfinished : requestId;
+    }
+
+    /**
+     * Called from JS to know how many works of some worker haven't finished yet, so producers can slow down
+     * @param worker the worker's name
+     * @param p the promise to send the number of unfinished works back to JS
      */
     @ReactMethod
-    public void startHeadlessTask(ReadableMap workConfiguration) {
-        Intent headlessIntent = new Intent(context, BackgroundWorkerService.class);
-        Bundle extras = Arguments.toBundle(workConfiguration);
-        if(extras!=null) headlessIntent.putExtras(extras);
-        if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.O)
-            BackgroundWorkerModule.this.getReactApplicationContext().startForegroundService(headlessIntent);
-        else BackgroundWorkerModule.this.getReactApplicationContext().startService(headlessIntent);
+    public void pending(String worker, Promise p) {
+        if(pendingWorks.isWatched(worker)) {
+            p.resolve(pendingWorks.depth(worker));
+            return;
+        }
+
+        ListenableFuture<List<WorkInfo>> futureInfos = WorkManager.getInstance(context).getWorkInfosByTag(worker);
+        futureInfos.addListener(() -> {
+            try {
+                int depth = 0;
+                for (WorkInfo info : futureInfos.get()) if(!info.getState().isFinished()) depth++;
+                p.resolve(depth);
+            } catch (Exception e) {
+                p.reject("ERROR", "Failed to get pending works: " + e.getMessage());
+            }
+        }, executor);
     }
 
     /**
      * Called when the JS task is finished to inform the native side so the worker can wrap up and store the information
      * @param id the work's id for this task
+     * @param attempt the run attempt the task was started for
      * @param value the value returned by the task
      * @param result task's resolution, could be success, failure or retry
      */
     @ReactMethod
-    public void result(String id, String value, String result) {
-        Intent intent = new Intent(id + "result");
-        intent.putExtra("result", result);
-        intent.putExtra("value", value);
-        context.sendBroadcast(intent);
+    public void result(String id, int attempt, String value, String result) {
+        complete(id, attempt, value, result);
+    }
+
+    /**
+     * Same as result, for many tasks at once, so a burst of finished tasks crosses the bridge once
+     * @param results the tasks' results, each one with the work's id, its run attempt, the task's value and its resolution
+     */
+    @ReactMethod
+    public void results(ReadableArray results) {
+        for (int i = 0; i < results.size(); i++) {
+            ReadableMap result = results.getMap(i);
+            if (result == null || !result.hasKey("id")) continue;
+            String value = result.hasKey("value") && !result.isNull("value") ? result.getString("value") : null;
+            String resolution = result.hasKey("result") && !result.isNull("result") ? result.getString("result") : null;
+            // Results without an attempt can't be matched to the run they belong to
+            int attempt = result.hasKey("attempt") && !result.isNull("attempt") ? result.getInt("attempt") : -1;
+            complete(result.getString("id"), attempt, value, resolution);
+        }
+    }
+
+    private void complete(String id, int attempt, @Nullable String value, @Nullable String result) {
+        // Written before the work is retried, so its next attempt only gets the retried payloads, along with the
+        // results of the others. A late result of a previous attempt must not replace what the current one carries
+        if (BackgroundWorker.RETRY_ITEMS.equals(result) && value != null && CompletionRegistry.isWaiting(id, attempt)) {
+            try {
+                CoalescedPayloads.getInstance(getReactApplicationContext()).carryOver(id, value);
+                Metrics.increment("batch.partiallyRetried");
+            } catch (IOException e) {
+                Log.e(TAG, "Could not carry over the retried payloads of work " + id + ", the whole batch is retried", e);
+            }
+        }
+        CompletionRegistry.complete(id, attempt, BackgroundWorker.toResult(value, result));
     }
 
     /**
@@ -212,11 +694,6 @@ public class BackgroundWorkerModule extends ReactContextBaseJavaModule {
      */
     @ReactMethod
     public void cancel(String id, final Promise p) {
-        if (Looper.myLooper() != Looper.getMainLooper()) {
-            handler.post(() -> cancel(id, p));
-            return;
-        }
-
         try {
             final Operation operation = WorkManager.getInstance(context)
                 .cancelWorkById(UUID.fromString(id));
@@ -224,11 +701,13 @@ public class BackgroundWorkerModule extends ReactContextBaseJavaModule {
             operation.getResult().addListener(() -> {
                 try {
                     State.SUCCESS success = operation.getResult().get();
-                    handler.post(() -> p.resolve(success != null));
+                    p.resolve(success != null);
+                    // A cancelled work never releases its payload, so it has to be collected here
+                    releasePayloads(Collections.singletonList(UUID.fromString(id)));
                 } catch (Exception e) {
-                    handler.post(() -> p.reject("CANCEL_ERROR", "Failed to cancel work: " + e.getMessage()));
+                    p.reject("CANCEL_ERROR", "Failed to cancel work: " + e.getMessage());
                 }
-            }, Executors.newSingleThreadExecutor());
+            }, executor);
         } catch (Exception e) {
             p.reject("ERROR", "Invalid work ID: " + e.getMessage());
         }
@@ -241,11 +720,6 @@ public class BackgroundWorkerModule extends ReactContextBaseJavaModule {
      */
     @ReactMethod
     public void info(String id, final Promise p) {
-        if (Looper.myLooper() != Looper.getMainLooper()) {
-            handler.post(() -> info(id, p));
-            return;
-        }
-
         try {
             ListenableFuture<WorkInfo> futureInfo = WorkManager.getInstance(context)
                 .getWorkInfoById(UUID.fromString(id));
@@ -254,68 +728,167 @@ public class BackgroundWorkerModule extends ReactContextBaseJavaModule {
                 try {
                     WorkInfo info = futureInfo.get();
                     if (info == null) {
-                        handler.post(() -> p.reject("ERROR", "Work info not found for id: " + id));
+                        p.reject("ERROR", "Work info not found for id: " + id);
                         return;
                     }
-                    handler.post(() -> p.resolve(Arguments.fromBundle(Parser.getWorkInfo(info))));
+                    p.resolve(Arguments.fromBundle(Parser.getWorkInfo(info)));
                 } catch (Exception e) {
-                    handler.post(() -> p.reject("ERROR", "Failed to get work info: " + e.getMessage()));
+                    p.reject("ERROR", "Failed to get work info: " + e.getMessage());
                 }
-            }, Executors.newSingleThreadExecutor());
+            }, executor);
         } catch (Exception e) {
             p.reject("ERROR", "Invalid work ID: " + e.getMessage());
         }
     }
 
     /**
-     * Method called to add a listener to changes on some work's info,
-     * The callback is not called always after the subscription, so we manually send the information to a more
-     * consistent behaviour
-     * @param id the work's id that one wants to listen
+     * Same as info, for many works with one query per chunk of ids instead of one per work
+     * @param ids the works' ids
+     * @param p the promise to send the works' info back to JS, keyed by id, unknown works are left out
      */
     @ReactMethod
-    public void addListener(String id) {
-
-        if(listeners.containsKey(id)) return;
+    public void infoBatch(ReadableArray ids, final Promise p) {
+        List<List<UUID>> chunks = new ArrayList<>();
+        try {
+            List<UUID> chunk = null;
+            for (int i = 0; i < ids.size(); i++) {
+                if(chunk==null || chunk.size() >= MAX_QUERY_IDS) {
+                    chunk = new ArrayList<>();
+                    chunks.add(chunk);
+                }
+                chunk.add(UUID.fromString(ids.getString(i)));
+            }
+        } catch (Exception e) {
+            p.reject("ERROR", "Invalid work ID: " + e.getMessage());
+            return;
+        }
 
-        final LiveData<WorkInfo> data = WorkManager.getInstance(context).getWorkInfoByIdLiveData(UUID.fromString(id));
+        final WritableMap infos = Arguments.createMap();
+        if(chunks.isEmpty()) {
+            p.resolve(infos);
+            return;
+        }
 
-        final Observer<WorkInfo> listener = workInfo -> {
-            if (workInfo == null) return;
-            context.getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
-                    .emit(id+"info", Arguments.fromBundle(Parser.getWorkInfo(workInfo)));
-        };
+        final AtomicInteger remaining = new AtomicInteger(chunks.size());
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        for (List<UUID> chunk : chunks) {
+            ListenableFuture<List<WorkInfo>> futureInfos = WorkManager.getInstance(context)
+                    .getWorkInfos(WorkQuery.Builder.fromIds(chunk).build());
 
-        handler.post(() -> {
-            data.observeForever(listener);
-            listeners.put(id, listener);
-        });
+            futureInfos.addListener(() -> {
+                try {
+                    List<WorkInfo> found = futureInfos.get();
+                    synchronized (infos) {
+                        for (WorkInfo info : found)
+                            infos.putMap(info.getId().toString(), Arguments.fromBundle(Parser.getWorkInfo(info)));
+                    }
+                    if(remaining.decrementAndGet() == 0 && !failed.get()) p.resolve(infos);
+                } catch (Exception e) {
+                    if(failed.compareAndSet(false, true)) p.reject("ERROR", "Failed to get works info: " + e.getMessage());
+                }
+            }, executor);
+        }
+    }
 
-        WorkInfo info = data.getValue();
-        if(info!=null) context.getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
-                .emit(id+"info", Arguments.fromBundle(Parser.getWorkInfo(info)));
+    /**
+     * Called from JS to read the module's counters, useful to watch how the native side behaves under load
+     * @param p the promise to send the metrics back to JS
+     */
+    @ReactMethod
+    public void metrics(Promise p) {
+        WritableMap metrics = Metrics.snapshot();
+        metrics.putInt("callbacks.queueDepth", executor.getQueueDepth());
+        metrics.putInt("callbacks.active", executor.getActiveCount());
+        metrics.putInt("io.queueDepth", io.getQueue().size());
+        metrics.putInt("io.active", io.getActiveCount());
+        synchronized (listeners) {
+            int subscribers = 0;
+            for (WorkInfoListener listener : listeners.values()) subscribers += listener.getSubscribers();
+            metrics.putInt("listeners.observers", listeners.size());
+            metrics.putInt("listeners.subscribers", subscribers);
+        }
+        synchronized (workerListeners) {
+            metrics.putInt("listeners.workers", workerListeners.size());
+        }
+        long compressedInput = Metrics.get("compression.inputBytes");
+        if (compressedInput > 0)
+            metrics.putDouble("compression.ratio", (double) Metrics.get("compression.outputBytes") / compressedInput);
+        p.resolve(metrics);
+    }
 
+    /**
+     * Method called to add a listener to changes on some work's info, every subscriber of the same work shares one
+     * observer, which sends the current info as soon as it's observed
+     * @param id the work's id that one wants to listen
+     * @param minInterval the minimum time between two events in milliseconds, the latest info is sent once it's over
+     */
+    @ReactMethod
+    public void addListener(String id, double minInterval) {
+        subscribe(listeners, id, (long) minInterval, interval -> new WorkInfoListener(context, id, interval));
     }
 
     /**
-     * Method to remove a listener from JS, it has problems when one work has multiple listener and
-     * one of them unsubscribes, should set some counter
+     * Method to remove a listener from JS, the observer is only removed when its last subscriber leaves
      * @param id the work's id that one wants to unsubscribe
+     * @param minInterval the interval the listener was added with
+     */
+    @ReactMethod
+    public void removeListener(String id, double minInterval) {
+        unsubscribe(listeners, id, (long) minInterval);
+    }
+
+    /**
+     * Observes every work of a worker with a single query, sending only the works that changed on each update
+     * @param name the worker's name
+     * @param minInterval the minimum time between two events in milliseconds, the changes in between are sent together
      */
     @ReactMethod
-    public void removeListener(String id) {
+    public void observeWorker(String name, double minInterval) {
+        subscribe(workerListeners, name, (long) minInterval, interval -> new WorkerInfoListener(context, name, interval));
+    }
 
-        Observer<WorkInfo> listener = listeners.get(id);
+    /**
+     * @param name the worker's name
+     * @param minInterval the interval the worker was observed with
+     */
+    @ReactMethod
+    public void unobserveWorker(String name, double minInterval) {
+        unsubscribe(workerListeners, name, (long) minInterval);
+    }
+
+    private <O extends SharedObserver<?>> void subscribe(Map<String, O> observers, String key, long minInterval,
+                                                         ObserverFactory<O> factory) {
+        O observer;
+        synchronized (observers) {
+            observer = observers.get(key);
+            if(observer!=null) {
+                observer.subscribe(minInterval);
+                return;
+            }
+            observer = factory.create(minInterval);
+            observers.put(key, observer);
+        }
 
-        if(listener==null) return;
+        // LiveData can only be observed from the main thread
+        handler.post(observer::observe);
+    }
 
-        final LiveData<WorkInfo> data = WorkManager.getInstance(context).getWorkInfoByIdLiveData(UUID.fromString(id));
+    private <O extends SharedObserver<?>> void unsubscribe(Map<String, O> observers, String key, long minInterval) {
+        O observer;
+        synchronized (observers) {
+            observer = observers.get(key);
+            if(observer==null || !observer.unsubscribe(minInterval)) return;
+            observers.remove(key);
+        }
 
-        handler.post(() -> {
-            data.removeObserver(listener);
-            listeners.remove(id);
-        });
+        handler.post(observer::stop);
+    }
 
+    private <O extends SharedObserver<?>> void unsubscribeAll(Map<String, O> observers) {
+        synchronized (observers) {
+            for (O observer : observers.values()) handler.post(observer::stop);
+            observers.clear();
+        }
     }
 
 }
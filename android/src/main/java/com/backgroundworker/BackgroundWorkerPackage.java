@@ -10,9 +10,23 @@ import java.util.Collections;
 import java.util.List;
 
 public class BackgroundWorkerPackage implements ReactPackage {
+
+    private final int callbackThreads;
+
+    public BackgroundWorkerPackage() {
+        this(CallbackExecutor.DEFAULT_THREADS);
+    }
+
+    /**
+     * @param callbackThreads maximum number of threads used to deliver WorkManager results back to JS
+     */
+    public BackgroundWorkerPackage(int callbackThreads) {
+        this.callbackThreads = Math.max(1, callbackThreads);
+    }
+
     @Override
     public List<NativeModule> createNativeModules(ReactApplicationContext reactContext) {
-        return Arrays.<NativeModule>asList(new BackgroundWorkerModule(reactContext));
+        return Arrays.<NativeModule>asList(new BackgroundWorkerModule(reactContext, callbackThreads));
     }
 
     @Override
@@ -1,17 +1,24 @@
 package com.backgroundworker;
 
-import android.app.Notification;
-import android.app.NotificationChannel;
-import android.app.NotificationManager;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
+import android.util.SparseArray;
 
 import com.facebook.react.HeadlessJsTaskService;
+import com.facebook.react.ReactInstanceManager;
 import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.ReactContext;
+import com.facebook.react.bridge.UiThreadUtil;
 import com.facebook.react.jstasks.HeadlessJsTaskConfig;
+import com.facebook.react.jstasks.HeadlessJsTaskContext;
 
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nullable;
@@ -19,7 +26,63 @@ import javax.annotation.Nullable;
 public class BackgroundWorkerService extends HeadlessJsTaskService {
     private static final String TAG = "BackgroundWorkerService";
     private static final int DEFAULT_TIMEOUT_MINUTES = 10;
-    private static final int DEFAULT_NOTIFICATION_ID = 123456789;
+    private static final int NOTIFICATION_ID = 123456789;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable idleStop = this::stopSelf;
+    // Only created from Android O on, where the service has to show a notification
+    private WorkerNotifications notifications;
+    // Every worker has its own cap, running count and waiting tasks
+    private final Map<String, Integer> concurrency = new HashMap<>();
+    private final Map<String, Integer> running = new HashMap<>();
+    private final Map<String, ArrayDeque<Intent>> queued = new HashMap<>();
+    // Worker of each task started by this service, React reports the tasks of every service to every service
+    private final SparseArray<String> tasks = new SparseArray<>();
+    private int totalRunning = 0;
+    // Longest keepAlive asked since the service was last idle
+    private long keepAlive = 0;
+
+    static void start(Context context, Bundle extras) {
+        Intent intent = new Intent(context, BackgroundWorkerService.class);
+        intent.putExtras(extras);
+        if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.O) context.startForegroundService(intent);
+        else context.startService(intent);
+    }
+
+    /**
+     * The service stays alive while tasks keep coming, tasks over their worker's concurrency cap wait for one of its
+     * running tasks to finish
+     */
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        handler.removeCallbacks(idleStop);
+
+        Bundle extras = intent != null ? intent.getExtras() : null;
+        String name = extras != null ? extras.getString("name") : null;
+        if (extras != null) {
+            if (extras.containsKey("keepAlive")) keepAlive = Math.max(keepAlive, (long) extras.getDouble("keepAlive"));
+        }
+        if (name != null) {
+            if (extras.containsKey("headlessConcurrency"))
+                concurrency.put(name, Math.max(1, (int) extras.getDouble("headlessConcurrency")));
+            else concurrency.remove(name);
+        }
+
+        if (name != null && getRunning(name) >= getConcurrency(name)) {
+            // startForegroundService demands startForeground even if the task has to wait
+            showNotification(extras);
+            ArrayDeque<Intent> waiting = queued.get(name);
+            if (waiting == null) {
+                waiting = new ArrayDeque<>();
+                queued.put(name, waiting);
+            }
+            waiting.add(intent);
+            Metrics.increment("headless.queued");
+            return START_REDELIVER_INTENT;
+        }
+
+        return super.onStartCommand(intent, flags, startId);
+    }
 
     @Nullable
     @Override
@@ -39,18 +102,21 @@ public class BackgroundWorkerService extends HeadlessJsTaskService {
             String name = extras.getString("name");
             String title = extras.getString("title");
             String text = extras.getString("text");
-            String id = extras.getString("id");
 
             if (name == null || title == null || text == null) {
                 Log.e(TAG, "Missing required parameters: name, title, or text");
                 return null;
             }
 
-            int timeout = (int) extras.getDouble("timeout", TimeUnit.MINUTES.toMillis(DEFAULT_TIMEOUT_MINUTES));
+            // The worker's timeout is given in minutes
+            long timeout = TimeUnit.MINUTES.toMillis(DEFAULT_TIMEOUT_MINUTES);
+            if (extras.containsKey("timeout")) timeout = (long) (extras.getDouble("timeout") * TimeUnit.MINUTES.toMillis(1));
 
-            if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.O) {
-                createNotificationAndStartForeground(name, title, text, id);
-            }
+            showNotification(extras);
+
+            running.put(name, getRunning(name) + 1);
+            totalRunning++;
+            Metrics.increment(totalRunning > 1 ? "headless.reused" : "headless.started");
 
             return new HeadlessJsTaskConfig(
                 name, 
@@ -65,31 +131,90 @@ public class BackgroundWorkerService extends HeadlessJsTaskService {
         }
     }
 
-    private void createNotificationAndStartForeground(String name, String title, String text, String id) {
-        if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.O) {
-            try {
-                NotificationManager notificationManager = 
-                    (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+    /**
+     * Same as the base service, except the task's id is kept with its worker so its finish can be told apart
+     */
+    @Override
+    protected void startTask(HeadlessJsTaskConfig taskConfig) {
+        UiThreadUtil.assertOnUiThread();
+        acquireWakeLockNow(this);
+
+        ReactInstanceManager manager = getReactNativeHost().getReactInstanceManager();
+        ReactContext reactContext = manager.getCurrentReactContext();
+        if (reactContext != null) {
+            runTask(reactContext, taskConfig);
+            return;
+        }
 
-                NotificationChannel channel = new NotificationChannel(
-                    name,
-                    name,
-                    NotificationManager.IMPORTANCE_MIN
-                );
-                
-                notificationManager.createNotificationChannel(channel);
+        manager.addReactInstanceEventListener(new ReactInstanceManager.ReactInstanceEventListener() {
+            @Override
+            public void onReactContextInitialized(ReactContext reactContext) {
+                manager.removeReactInstanceEventListener(this);
+                runTask(reactContext, taskConfig);
+            }
+        });
+        if (!manager.hasStartedCreatingInitialContext()) manager.createReactContextInBackground();
+    }
 
-                int iconResource = getNotificationIcon(name);
+    private void runTask(ReactContext reactContext, HeadlessJsTaskConfig taskConfig) {
+        HeadlessJsTaskContext taskContext = HeadlessJsTaskContext.getInstance(reactContext);
+        taskContext.addTaskEventListener(this);
+        UiThreadUtil.runOnUiThread(() -> tasks.put(taskContext.startTask(taskConfig), taskConfig.getTaskKey()));
+    }
 
-                Notification notification = new Notification.Builder(this, name)
-                        .setWhen(System.currentTimeMillis())
-                        .setContentText(text)
-                        .setContentTitle(title)
-                        .setSmallIcon(iconResource)
-                        .build();
+    @Override
+    public void onHeadlessJsTaskFinish(int taskId) {
+        String name = tasks.get(taskId);
+        // Tasks of other headless services are reported here too
+        if (name == null) return;
+        tasks.remove(taskId);
+
+        running.put(name, Math.max(0, getRunning(name) - 1));
+        totalRunning = Math.max(0, totalRunning - 1);
+
+        ArrayDeque<Intent> waiting = queued.get(name);
+        while (waiting != null && !waiting.isEmpty() && getRunning(name) < getConcurrency(name)) {
+            HeadlessJsTaskConfig config = getTaskConfig(waiting.poll());
+            if (config != null) startTask(config);
+        }
+
+        if (totalRunning > 0) return;
+
+        // Stopping is deferred so a burst of tasks reuses the same service and JS runtime,
+        // the next burst asks for its own keepAlive
+        long linger = keepAlive;
+        keepAlive = 0;
+        if (linger > 0) handler.postDelayed(idleStop, linger);
+        else stopSelf();
+    }
 
-                int notificationId = id != null ? id.hashCode() : DEFAULT_NOTIFICATION_ID;
-                startForeground(notificationId, notification);
+    private int getRunning(String name) {
+        Integer count = running.get(name);
+        return count != null ? count : 0;
+    }
+
+    private int getConcurrency(String name) {
+        Integer cap = concurrency.get(name);
+        return cap != null ? cap : Integer.MAX_VALUE;
+    }
+
+    private void showNotification(Bundle extras) {
+        if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.O) {
+            createNotificationAndStartForeground(
+                extras.getString("name"),
+                extras.getString("title"),
+                extras.getString("text")
+            );
+        }
+    }
+
+    private void createNotificationAndStartForeground(String name, String title, String text) {
+        if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.O) {
+            try {
+                if (notifications == null) notifications = new WorkerNotifications(this);
+
+                // Every task updates the same notification instead of stacking a new one
+                startForeground(NOTIFICATION_ID, notifications.build(name, title, text));
 
             } catch (Exception e) {
                 Log.e(TAG, "Error creating notification", e);
@@ -97,18 +222,9 @@ public class BackgroundWorkerService extends HeadlessJsTaskService {
         }
     }
 
-    private int getNotificationIcon(String name) {
-        int customIcon = getResources().getIdentifier(
-            name, 
-            "drawable", 
-            getApplicationContext().getPackageName()
-        );
-        
-        return customIcon != 0 ? customIcon : android.R.drawable.ic_menu_info_details;
-    }
-
     @Override
     public void onDestroy() {
+        handler.removeCallbacks(idleStop);
         super.onDestroy();
         if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.O) {
             stopForeground(true);
@@ -0,0 +1,61 @@
+package com.backgroundworker;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded executor shared by all the module's WorkManager callbacks, so a burst of native calls
+ * doesn't spawn one thread per call. Idle threads are reclaimed and tasks that don't fit
+ * the queue run on the submitting thread.
+ */
+class CallbackExecutor implements Executor {
+
+    static final int DEFAULT_THREADS = 2;
+    private static final int QUEUE_CAPACITY = 1024;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private final ThreadPoolExecutor executor;
+
+    CallbackExecutor(int threads) {
+        final AtomicInteger count = new AtomicInteger();
+        executor = new ThreadPoolExecutor(
+                threads,
+                threads,
+                KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(QUEUE_CAPACITY),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "BackgroundWorker-callback-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy()
+        );
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void execute(@NonNull Runnable command) {
+        Metrics.increment("callbacks.submitted");
+        Metrics.max("callbacks.maxQueueDepth", executor.getQueue().size() + 1);
+        executor.execute(command);
+    }
+
+    int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    void shutdown() {
+        executor.shutdown();
+    }
+
+}
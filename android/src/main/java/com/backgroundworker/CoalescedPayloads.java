@@ -0,0 +1,252 @@
+package com.backgroundworker;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.work.WorkInfo;
+import androidx.work.WorkManager;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Iterator;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+/**
+ * Mutable payload slots for coalesced unique works, until the work is dispatched new payloads are merged
+ * into its slot instead of enqueueing another work. The worker takes the slot right before dispatching,
+ * after that a new work has to be enqueued for the key.
+ * Batch works keep the payloads they retried the same way, along with their positions in the batch and the results
+ * collected so far, so their next attempt only gets those and still reports one result per payload of the batch.
+ */
+final class CoalescedPayloads {
+
+    private static final String DIRECTORY = "backgroundworker_slots";
+    private static final String TAG = "CoalescedPayloads";
+    private static final String TAKEN_PREFIX = "taken-";
+    private static final String TAG_PREFIX = "slot:";
+    // Slots younger than this are never collected, their work may still be being enqueued
+    private static final long GRACE_PERIOD = TimeUnit.MINUTES.toMillis(1);
+
+    private static volatile CoalescedPayloads instance;
+
+    private final Context context;
+    private final File directory;
+
+    private CoalescedPayloads(Context context) {
+        this.context = context.getApplicationContext();
+        this.directory = new File(this.context.getFilesDir(), DIRECTORY);
+    }
+
+    static CoalescedPayloads getInstance(Context context) {
+        if (instance == null) {
+            synchronized (CoalescedPayloads.class) {
+                if (instance == null) instance = new CoalescedPayloads(context);
+            }
+        }
+        return instance;
+    }
+
+    static String slotFor(String uniqueName) {
+        return PayloadStore.hash(uniqueName.getBytes(WorkerTemplate.UTF_8));
+    }
+
+    static String tagFor(String slot) {
+        return TAG_PREFIX + slot;
+    }
+
+    /**
+     * @return the slot of a work's tag, null if the tag isn't one
+     */
+    @Nullable
+    static String slotFromTag(String tag) {
+        return tag.startsWith(TAG_PREFIX) ? tag.substring(TAG_PREFIX.length()) : null;
+    }
+
+    /**
+     * @return the id of the work that still owns the slot, null if the slot was already taken
+     */
+    @Nullable
+    synchronized String owner(String slot) throws IOException {
+        String[] content = read(slot);
+        return content != null ? content[0] : null;
+    }
+
+    /**
+     * Merges the payload into the one already waiting in the slot
+     * @param owner the work the slot is expected to belong to
+     * @return false if the slot was taken or given to another work in the meantime
+     */
+    synchronized boolean merge(String slot, String owner, @Nullable String payload) throws IOException {
+        String[] content = read(slot);
+        if (content == null || !content[0].equals(owner)) return false;
+        write(slot, owner, mergePayloads(content[1], payload));
+        return true;
+    }
+
+    /**
+     * Gives the slot to a new work
+     */
+    synchronized void open(String slot, String id, @Nullable String payload) throws IOException {
+        write(slot, id, payload);
+    }
+
+    /**
+     * Called by the worker when it starts, no payload can be merged into this work afterwards.
+     * The payload is kept aside under the work's id so it survives retries.
+     * @return the slot's payload, null if the slot doesn't belong to this work
+     */
+    @Nullable
+    synchronized String take(String slot, String id) throws IOException {
+        String[] content = read(slot);
+        if (content != null && content[0].equals(id)) {
+            if (!new File(directory, slot).renameTo(new File(directory, TAKEN_PREFIX + id)))
+                throw new IOException("Could not take slot " + slot);
+            return content[1];
+        }
+
+        content = read(TAKEN_PREFIX + id);
+        return content != null ? content[1] : null;
+    }
+
+    /**
+     * Keeps what a partially retried batch work carries to its next attempts, it replaces the work's own payload
+     * @param carried the JSON object JS reported, with the retried payloads, their indices and the results so far
+     */
+    synchronized void carryOver(String id, String carried) throws IOException {
+        write(TAKEN_PREFIX + id, id, carried);
+    }
+
+    /**
+     * @return what was carried over from the work's previous attempt, null if there is none
+     */
+    @Nullable
+    synchronized String carriedOver(String id) throws IOException {
+        String[] content = read(TAKEN_PREFIX + id);
+        return content != null ? content[1] : null;
+    }
+
+    /**
+     * Called once the work reached a terminal state
+     */
+    synchronized void release(String id) {
+        new File(directory, TAKEN_PREFIX + id).delete();
+    }
+
+    /**
+     * Called once a work that may never have taken its slot reached a terminal state, eg: it was cancelled
+     * @param slot the work's slot
+     * @param id the work's id, the slot is only deleted while it still belongs to this work
+     */
+    synchronized void release(String slot, String id) throws IOException {
+        release(id);
+        String owner = owner(slot);
+        if (owner != null && owner.equals(id) && new File(directory, slot).delete()) Metrics.increment("slots.collected");
+    }
+
+    /**
+     * Deletes the slots and taken payloads whose work finished without releasing them, eg: because it was stopped
+     * while running in a previous process. Blocks on WorkManager, so it must not run on the main thread
+     */
+    void sweep() {
+        String[] files = directory.list();
+        if (files == null) return;
+
+        for (String file : files) {
+            File slot = new File(directory, file);
+            if (System.currentTimeMillis() - slot.lastModified() < GRACE_PERIOD) continue;
+            if (file.endsWith(".tmp")) {
+                slot.delete();
+                continue;
+            }
+
+            try {
+                String id = file.startsWith(TAKEN_PREFIX) ? file.substring(TAKEN_PREFIX.length()) : owner(file);
+                if (id != null && isUnfinished(id)) continue;
+                synchronized (this) {
+                    // The slot may have been given to a new work in the meantime
+                    if (!file.startsWith(TAKEN_PREFIX) && id != null && !id.equals(owner(file))) continue;
+                    if (slot.delete()) Metrics.increment("slots.collected");
+                }
+            } catch (Exception e) {
+                Log.w(TAG, "Could not collect slot " + file, e);
+            }
+        }
+    }
+
+    private boolean isUnfinished(String id) throws Exception {
+        WorkInfo info = WorkManager.getInstance(context).getWorkInfoById(UUID.fromString(id)).get();
+        return info != null && !info.getState().isFinished();
+    }
+
+    /**
+     * Shallow merges JSON objects, the newest value wins for any key, any other payload is replaced
+     */
+    static String mergePayloads(@Nullable String previous, @Nullable String next) {
+        if (previous == null || next == null) return next;
+        try {
+            Object previousValue = new JSONTokener(previous).nextValue();
+            Object nextValue = new JSONTokener(next).nextValue();
+            if (!(previousValue instanceof JSONObject) || !(nextValue instanceof JSONObject)) return next;
+
+            JSONObject merged = (JSONObject) previousValue;
+            JSONObject update = (JSONObject) nextValue;
+            Iterator<String> keys = update.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                merged.put(key, update.get(key));
+            }
+            return merged.toString();
+        } catch (JSONException e) {
+            return next;
+        }
+    }
+
+    // First line holds the owner's id, the rest is the payload, absent when the payload is null
+    @Nullable
+    private String[] read(String slot) throws IOException {
+        File file = new File(directory, slot);
+        if (!file.exists()) return null;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), WorkerTemplate.UTF_8))) {
+            String id = reader.readLine();
+            if (id == null) return null;
+            StringBuilder payload = null;
+            char[] buffer = new char[4096];
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                if (payload == null) payload = new StringBuilder();
+                payload.append(buffer, 0, read);
+            }
+            return new String[] { id, payload != null ? payload.toString() : null };
+        }
+    }
+
+    private void write(String slot, String id, @Nullable String payload) throws IOException {
+        if (!directory.exists() && !directory.mkdirs() && !directory.exists())
+            throw new IOException("Could not create slots directory");
+
+        File temp = new File(directory, slot + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(temp), WorkerTemplate.UTF_8)) {
+            writer.write(id);
+            writer.write('\n');
+            if (payload != null) writer.write(payload);
+        }
+        if (!temp.renameTo(new File(directory, slot))) {
+            temp.delete();
+            throw new IOException("Could not write slot " + slot);
+        }
+    }
+
+}
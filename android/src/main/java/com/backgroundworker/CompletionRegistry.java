@@ -0,0 +1,55 @@
+package com.backgroundworker;
+
+import android.util.Log;
+
+import androidx.work.ListenableWorker.Result;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.reactivex.SingleEmitter;
+
+/**
+ * Works waiting for their JS result, completed directly by BackgroundWorkerModule.result.
+ * A retried work keeps its id, so entries are keyed by run attempt too, a late result of a previous attempt is ignored
+ */
+final class CompletionRegistry {
+
+    private static final String TAG = "CompletionRegistry";
+
+    private static final ConcurrentHashMap<String, SingleEmitter<Result>> pending = new ConcurrentHashMap<>();
+
+    private CompletionRegistry() {}
+
+    private static String key(String id, int attempt) {
+        return id + "#" + attempt;
+    }
+
+    static void register(String id, int attempt, SingleEmitter<Result> emitter) {
+        String key = key(id, attempt);
+        pending.put(key, emitter);
+        emitter.setCancellable(() -> pending.remove(key, emitter));
+    }
+
+    static boolean isWaiting(String id, int attempt) {
+        return pending.containsKey(key(id, attempt));
+    }
+
+    /**
+     * @param id the work's id
+     * @param attempt the run attempt the result belongs to
+     * @param result the work's result to be handed to WorkManager
+     * @return false if no work was waiting for this attempt, eg: it was stopped or timed out meanwhile
+     */
+    static boolean complete(String id, int attempt, Result result) {
+        SingleEmitter<Result> emitter = pending.remove(key(id, attempt));
+        if (emitter == null) {
+            Log.w(TAG, "No work waiting for result " + id + " of attempt " + attempt);
+            Metrics.increment("completions.orphaned");
+            return false;
+        }
+        Metrics.increment("completions.completed");
+        emitter.onSuccess(result);
+        return true;
+    }
+
+}
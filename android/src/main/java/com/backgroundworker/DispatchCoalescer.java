@@ -0,0 +1,104 @@
+package com.backgroundworker;
+
+import android.os.Bundle;
+import android.util.Log;
+
+import androidx.work.ListenableWorker.Result;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.ReactApplicationContext;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.modules.core.DeviceEventManagerModule;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the works that become ready at about the same time and emits them to JS as a single array event
+ * per worker, so a burst of works crosses the bridge once
+ */
+final class DispatchCoalescer {
+
+    private static final String TAG = "DispatchCoalescer";
+    private static final long WINDOW = 20;
+    private static final int MAX_JOBS = 100;
+
+    private static final class Window {
+        final List<Bundle> jobs = new ArrayList<>();
+        ScheduledFuture<?> timer;
+    }
+
+    private static final Map<String, Window> ready = new HashMap<>();
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "BackgroundWorker-dispatch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private DispatchCoalescer() {}
+
+    /**
+     * @param name the worker's name, which is also the event's name
+     * @param job the work's id, run attempt and payload
+     */
+    static void dispatch(String name, Bundle job) {
+        Window flushed = null;
+
+        synchronized (ready) {
+            Window window = ready.get(name);
+            if (window == null) {
+                Window created = new Window();
+                created.timer = timer.schedule(() -> flush(name, created), WINDOW, TimeUnit.MILLISECONDS);
+                ready.put(name, created);
+                window = created;
+            }
+            window.jobs.add(job);
+            if (window.jobs.size() >= MAX_JOBS) {
+                // The next window gets its own timer
+                window.timer.cancel(false);
+                flushed = ready.remove(name);
+            }
+        }
+
+        if (flushed != null) emit(name, flushed.jobs);
+    }
+
+    private static void flush(String name, Window window) {
+        synchronized (ready) {
+            // Already flushed because it was full
+            if (ready.get(name) != window) return;
+            ready.remove(name);
+        }
+        emit(name, window.jobs);
+    }
+
+    private static void emit(String name, List<Bundle> jobs) {
+        ReactApplicationContext context = BackgroundWorkerModule.context;
+
+        if (context == null) {
+            Log.w(TAG, "React context is gone, retrying " + jobs.size() + " works");
+            for (Bundle job : jobs) CompletionRegistry.complete(job.getString("id"), job.getInt("attempt"), Result.retry());
+            return;
+        }
+
+        WritableArray events = Arguments.createArray();
+        for (Bundle job : jobs) events.pushMap(Arguments.fromBundle(job));
+
+        Metrics.increment("dispatch.events");
+        Metrics.add("dispatch.jobs", jobs.size());
+
+        try {
+            context.getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class).emit(name, events);
+        } catch (Exception e) {
+            Log.e(TAG, "Error emitting works to JS", e);
+            for (Bundle job : jobs) CompletionRegistry.complete(job.getString("id"), job.getInt("attempt"), Result.failure());
+        }
+    }
+
+}
@@ -0,0 +1,59 @@
+package com.backgroundworker;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableMap;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process wide counters exposed to JS through BackgroundWorkerModule.metrics
+ */
+final class Metrics {
+
+    private static final ConcurrentHashMap<String, AtomicLong> counters = new ConcurrentHashMap<>();
+
+    private Metrics() {}
+
+    private static AtomicLong counter(String name) {
+        AtomicLong counter = counters.get(name);
+        if (counter != null) return counter;
+        AtomicLong created = new AtomicLong();
+        counter = counters.putIfAbsent(name, created);
+        return counter != null ? counter : created;
+    }
+
+    static void increment(String name) {
+        counter(name).incrementAndGet();
+    }
+
+    static void add(String name, long delta) {
+        counter(name).addAndGet(delta);
+    }
+
+    /**
+     * Keeps the highest value ever reported under this name
+     */
+    static void max(String name, long value) {
+        AtomicLong counter = counter(name);
+        long current;
+        do {
+            current = counter.get();
+            if (value <= current) return;
+        } while (!counter.compareAndSet(current, value));
+    }
+
+    static long get(String name) {
+        AtomicLong counter = counters.get(name);
+        return counter != null ? counter.get() : 0;
+    }
+
+    static WritableMap snapshot() {
+        WritableMap snapshot = Arguments.createMap();
+        for (Map.Entry<String, AtomicLong> entry : counters.entrySet())
+            snapshot.putDouble(entry.getKey(), entry.getValue().get());
+        return snapshot;
+    }
+
+}
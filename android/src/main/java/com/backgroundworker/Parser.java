@@ -1,8 +1,11 @@
 package com.backgroundworker;
 
 import android.os.Bundle;
+import android.text.TextUtils;
 
+import androidx.work.BackoffPolicy;
 import androidx.work.Constraints;
+import androidx.work.ExistingWorkPolicy;
 import androidx.work.NetworkType;
 import androidx.work.WorkInfo;
 
@@ -45,6 +48,19 @@ public class Parser {
 
     }
 
+    static BackoffPolicy getBackoffPolicy(@Nullable String backoffPolicy) {
+        return "linear".equals(backoffPolicy) ? BackoffPolicy.LINEAR : BackoffPolicy.EXPONENTIAL;
+    }
+
+    static ExistingWorkPolicy getExistingWorkPolicy(@Nullable String policy) {
+        if (policy == null) return ExistingWorkPolicy.KEEP;
+        switch (policy) {
+            case "replace": return ExistingWorkPolicy.REPLACE;
+            case "append":  return ExistingWorkPolicy.APPEND_OR_REPLACE;
+            default:        return ExistingWorkPolicy.KEEP;
+        }
+    }
+
     private static String getWorkState(WorkInfo.State state) {
         switch (state) {
             case FAILED: return "failed";
@@ -65,7 +81,21 @@ public class Parser {
         _info.putInt("attemptCount", info.getRunAttemptCount());
         _info.putString("value", info.getOutputData().getString("value"));
 
+        String reason = info.getOutputData().getString("reason");
+        if (reason != null) _info.putString("reason", reason);
+
         return _info;
     }
 
+    /**
+     * Compares the fields sent to JS, WorkInfo changes in many other ways JS doesn't see
+     */
+    static boolean isSameWorkInfo(Bundle info, @Nullable Bundle other) {
+        return other != null
+                && TextUtils.equals(info.getString("state"), other.getString("state"))
+                && info.getInt("attemptCount") == other.getInt("attemptCount")
+                && TextUtils.equals(info.getString("value"), other.getString("value"))
+                && TextUtils.equals(info.getString("reason"), other.getString("reason"));
+    }
+
 }
@@ -0,0 +1,146 @@
+package com.backgroundworker;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.Operation;
+import androidx.work.WorkManager;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+/**
+ * Accumulates payloads enqueued to batch workers, a batch becomes a single work once it reaches the worker's
+ * maxBatchSize or once its oldest payload waited maxLatency, whatever comes first
+ */
+class PayloadBatcher {
+
+    private static final String TAG = "PayloadBatcher";
+
+    interface Callback {
+        /**
+         * @param id the batch's work id
+         * @param index the payload's position in the batch, its result is found at the same position in the work's value
+         */
+        void onEnqueued(String id, int index);
+        void onError(Exception e);
+    }
+
+    private static class Batch {
+        final WorkerTemplate worker;
+        final List<String> payloads = new ArrayList<>();
+        final List<Callback> callbacks = new ArrayList<>();
+        @Nullable ScheduledFuture<?> timer;
+
+        Batch(WorkerTemplate worker) {
+            this.worker = worker;
+        }
+    }
+
+    private final Context context;
+    private final PayloadStore store;
+    private final Executor callbackExecutor;
+    private final Map<String, Batch> batches = new HashMap<>();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "BackgroundWorker-batcher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    PayloadBatcher(Context context, PayloadStore store, Executor callbackExecutor) {
+        this.context = context.getApplicationContext();
+        this.store = store;
+        this.callbackExecutor = callbackExecutor;
+    }
+
+    void add(WorkerTemplate worker, @Nullable String payload, Callback callback) {
+        Batch sealed = null;
+
+        synchronized (batches) {
+            Batch batch = batches.get(worker.name);
+            if (batch == null) {
+                batch = new Batch(worker);
+                batches.put(worker.name, batch);
+                batch.timer = timer.schedule(() -> flush(worker.name), worker.maxLatency, TimeUnit.MILLISECONDS);
+            }
+
+            batch.payloads.add(payload != null ? payload : "null");
+            batch.callbacks.add(callback);
+
+            if (batch.payloads.size() >= worker.maxBatchSize) sealed = seal(worker.name);
+        }
+
+        if (sealed != null) submit(sealed);
+    }
+
+    /**
+     * Submits every open batch, called when the module goes away so no payload is left behind
+     */
+    void flushAll() {
+        List<Batch> sealed = new ArrayList<>();
+        synchronized (batches) {
+            for (String name : new ArrayList<>(batches.keySet())) sealed.add(seal(name));
+        }
+        for (Batch batch : sealed) submit(batch);
+    }
+
+    void shutdown() {
+        flushAll();
+        timer.shutdown();
+    }
+
+    private void flush(String name) {
+        Batch sealed;
+        synchronized (batches) {
+            sealed = seal(name);
+        }
+        if (sealed != null) submit(sealed);
+    }
+
+    @Nullable
+    private Batch seal(String name) {
+        Batch batch = batches.remove(name);
+        if (batch != null && batch.timer != null) batch.timer.cancel(false);
+        return batch;
+    }
+
+    private void submit(Batch batch) {
+        Metrics.increment("batch.sealed");
+        Metrics.add("batch.items", batch.payloads.size());
+
+        StringBuilder payload = new StringBuilder("[");
+        for (int i = 0; i < batch.payloads.size(); i++) {
+            if (i > 0) payload.append(',');
+            payload.append(batch.payloads.get(i));
+        }
+        payload.append(']');
+
+        try {
+            OneTimeWorkRequest request = batch.worker.newRequest(payload.toString(), store);
+            Operation operation = WorkManager.getInstance(context).enqueue(request);
+            operation.getResult().addListener(() -> {
+                try {
+                    operation.getResult().get();
+                    String id = request.getId().toString();
+                    for (int i = 0; i < batch.callbacks.size(); i++) batch.callbacks.get(i).onEnqueued(id, i);
+                } catch (Exception e) {
+                    for (Callback callback : batch.callbacks) callback.onError(e);
+                }
+            }, callbackExecutor);
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to submit batch for " + batch.worker.name, e);
+            for (Callback callback : batch.callbacks) callback.onError(e);
+        }
+    }
+
+}
@@ -0,0 +1,61 @@
+package com.backgroundworker;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate helpers used to shrink payloads before they are stored by WorkManager
+ */
+final class PayloadCompressor {
+
+    static final String DEFLATE = "deflate";
+    static final int DEFAULT_THRESHOLD = 1024;
+
+    private PayloadCompressor() {}
+
+    static byte[] deflate(byte[] input) {
+        long start = System.nanoTime();
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(input);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, input.length / 2));
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished()) out.write(buffer, 0, deflater.deflate(buffer));
+            byte[] output = out.toByteArray();
+
+            Metrics.increment("compression.count");
+            Metrics.add("compression.inputBytes", input.length);
+            Metrics.add("compression.outputBytes", output.length);
+            Metrics.add("compression.nanos", System.nanoTime() - start);
+            return output;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    static byte[] inflate(byte[] input) throws DataFormatException {
+        long start = System.nanoTime();
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(input);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(input.length * 4);
+            byte[] buffer = new byte[4096];
+            while (!inflater.finished()) {
+                int read = inflater.inflate(buffer);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new DataFormatException("Truncated deflate payload");
+                out.write(buffer, 0, read);
+            }
+
+            Metrics.increment("decompression.count");
+            Metrics.add("decompression.nanos", System.nanoTime() - start);
+            return out.toByteArray();
+        } finally {
+            inflater.end();
+        }
+    }
+
+}
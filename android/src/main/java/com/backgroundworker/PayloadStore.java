@@ -0,0 +1,187 @@
+package com.backgroundworker;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.work.WorkInfo;
+import androidx.work.WorkManager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+/**
+ * Keeps payloads too big for WorkManager's Data in app-private files addressed by their content hash,
+ * works carry only the reference and are tagged with it so the blob can be collected once no
+ * unfinished work points to it anymore
+ */
+final class PayloadStore {
+
+    private static final String TAG = "PayloadStore";
+    private static final String DIRECTORY = "backgroundworker_payloads";
+    private static final String TAG_PREFIX = "payload:";
+    // Blobs younger than this are never collected, they may belong to a work that is still being enqueued
+    private static final long GRACE_PERIOD = TimeUnit.MINUTES.toMillis(1);
+
+    // Data is capped at Data.MAX_DATA_BYTES, leave room for the worker configuration
+    static final int SPILL_THRESHOLD = 8 * 1024;
+
+    private static volatile PayloadStore instance;
+
+    private final Context context;
+    private final File directory;
+    private final ScheduledExecutorService io = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "BackgroundWorker-payloads");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private PayloadStore(Context context) {
+        this.context = context.getApplicationContext();
+        this.directory = new File(this.context.getFilesDir(), DIRECTORY);
+    }
+
+    static PayloadStore getInstance(Context context) {
+        if (instance == null) {
+            synchronized (PayloadStore.class) {
+                if (instance == null) instance = new PayloadStore(context);
+            }
+        }
+        return instance;
+    }
+
+    static String tagFor(String ref) {
+        return TAG_PREFIX + ref;
+    }
+
+    /**
+     * @return the payload reference of a work's tag, null if the tag isn't one
+     */
+    @Nullable
+    static String refFromTag(String tag) {
+        return tag.startsWith(TAG_PREFIX) ? tag.substring(TAG_PREFIX.length()) : null;
+    }
+
+    /**
+     * Writes the payload and returns its reference, identical payloads share the same blob
+     */
+    String put(byte[] payload) throws IOException {
+        String ref = hash(payload);
+        File blob = new File(directory, ref);
+
+        synchronized (this) {
+            if (blob.exists()) {
+                // Refresh the grace period, a collection already past its age check sees the change and keeps it
+                blob.setLastModified(System.currentTimeMillis());
+                return ref;
+            }
+        }
+
+        if (!directory.exists() && !directory.mkdirs() && !directory.exists())
+            throw new IOException("Could not create payload directory");
+
+        File temp = File.createTempFile(ref, ".tmp", directory);
+        try (OutputStream out = new FileOutputStream(temp)) {
+            out.write(payload);
+        }
+        if (!temp.renameTo(blob)) {
+            temp.delete();
+            if (!blob.exists()) throw new IOException("Could not store payload " + ref);
+        }
+
+        Metrics.increment("payloads.spilled");
+        Metrics.add("payloads.spilledBytes", payload.length);
+        return ref;
+    }
+
+    byte[] get(String ref) throws IOException {
+        File blob = new File(directory, ref);
+        try (InputStream in = new FileInputStream(blob)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) blob.length());
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) out.write(buffer, 0, read);
+            return out.toByteArray();
+        }
+    }
+
+    /**
+     * Deletes the blob if the given work was the last unfinished one referencing it
+     * @param ref the payload reference
+     * @param id the id of the work that just reached a terminal state
+     */
+    void release(String ref, @Nullable String id) {
+        io.execute(() -> collect(ref, id, true));
+    }
+
+    /**
+     * Deletes every blob no unfinished work references, catches the works of previous processes that were cancelled
+     * or stopped before releasing their payload
+     */
+    void sweep() {
+        io.execute(() -> {
+            String[] refs = directory.list();
+            if (refs == null) return;
+            for (String ref : refs) {
+                if (ref.endsWith(".tmp")) {
+                    File temp = new File(directory, ref);
+                    if (System.currentTimeMillis() - temp.lastModified() > GRACE_PERIOD) temp.delete();
+                    continue;
+                }
+                collect(ref, null, false);
+            }
+        });
+    }
+
+    private void collect(String ref, @Nullable String id, boolean reschedule) {
+        File blob = new File(directory, ref);
+        if (!blob.exists()) return;
+
+        long modified = blob.lastModified();
+        long age = System.currentTimeMillis() - modified;
+        if (age < GRACE_PERIOD) {
+            if (reschedule) io.schedule(() -> collect(ref, id, false), GRACE_PERIOD - age, TimeUnit.MILLISECONDS);
+            return;
+        }
+
+        try {
+            List<WorkInfo> infos = WorkManager.getInstance(context).getWorkInfosByTag(tagFor(ref)).get();
+            for (WorkInfo info : infos) {
+                if (info.getState().isFinished()) continue;
+                if (id != null && id.equals(info.getId().toString())) continue;
+                return;
+            }
+            synchronized (this) {
+                // Reused by a work that isn't enqueued yet, so the query above couldn't see it
+                if (blob.lastModified() != modified) return;
+                if (blob.delete()) Metrics.increment("payloads.collected");
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Could not collect payload " + ref, e);
+        }
+    }
+
+    static String hash(byte[] payload) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(payload);
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) hex.append(String.format("%02x", b));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
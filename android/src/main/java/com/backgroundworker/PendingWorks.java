@@ -0,0 +1,278 @@
+package com.backgroundworker;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.Observer;
+import androidx.work.WorkInfo;
+import androidx.work.WorkManager;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps the unfinished works of the workers that have a pending cap, in the order they were enqueued.
+ * The list is fed by the module when it enqueues and kept in sync with WorkManager through the worker's tag.
+ */
+class PendingWorks {
+
+    private static final String TAG = "PendingWorks";
+
+    /**
+     * What the worker's overflow policy decided for new works. The room it took is held until its works are added,
+     * it must be released when they aren't
+     */
+    static final class Admission {
+        final String worker;
+        // How many of the new works are enqueued on their own, the others are coalesced into the overflow work
+        final int admitted;
+        // How many of the oldest works are dropped once the new ones are in, so a failed enqueue doesn't cost any work
+        final int dropped;
+        // What this admission still holds, guarded by the PendingWorks
+        private int reserved;
+        private int evicting;
+
+        Admission(String worker, int admitted, int dropped) {
+            this.worker = worker;
+            this.admitted = admitted;
+            this.dropped = dropped;
+        }
+    }
+
+    private static class Watch {
+        final LiveData<List<WorkInfo>> data;
+        final Observer<List<WorkInfo>> observer;
+
+        Watch(LiveData<List<WorkInfo>> data, Observer<List<WorkInfo>> observer) {
+            this.data = data;
+            this.observer = observer;
+        }
+    }
+
+    private final Context context;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Map<String, LinkedHashMap<String, WorkInfo.State>> works = new HashMap<>();
+    // Works enqueued by the module that WorkManager didn't report yet
+    private final Set<String> unconfirmed = new HashSet<>();
+    private final Map<String, Watch> watches = new HashMap<>();
+    // Room held by admissions whose works aren't added yet, and how many works they are about to drop
+    private final Map<String, Integer> reserved = new HashMap<>();
+    private final Map<String, Integer> evicting = new HashMap<>();
+
+    PendingWorks(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    /**
+     * Starts tracking the worker's works, the current ones are loaded from WorkManager before it returns, so
+     * the backlog left by a previous process counts from the first enqueue. Blocks on WorkManager, so it must not
+     * run on the main thread
+     */
+    void watch(String worker) {
+        if (isWatched(worker)) return;
+
+        // Loaded without holding the lock, the main thread's updates and the enqueues would wait for the query otherwise
+        LinkedHashMap<String, WorkInfo.State> pending = new LinkedHashMap<>();
+        try {
+            for (WorkInfo info : WorkManager.getInstance(context).getWorkInfosByTag(worker).get())
+                if (!info.getState().isFinished()) pending.put(info.getId().toString(), info.getState());
+        } catch (Exception e) {
+            Log.w(TAG, "Could not load the pending works of " + worker + ", waiting for WorkManager to report them", e);
+        }
+        install(worker, pending);
+    }
+
+    private synchronized void install(String worker, LinkedHashMap<String, WorkInfo.State> pending) {
+        // Watched by another registration while loading
+        if (watches.containsKey(worker)) return;
+        works.put(worker, pending);
+
+        LiveData<List<WorkInfo>> data = WorkManager.getInstance(context).getWorkInfosByTagLiveData(worker);
+        Observer<List<WorkInfo>> observer = infos -> update(worker, infos);
+        watches.put(worker, new Watch(data, observer));
+
+        // LiveData can only be observed from the main thread
+        handler.post(() -> data.observeForever(observer));
+    }
+
+    synchronized void unwatch(String worker) {
+        Watch watch = watches.remove(worker);
+        reserved.remove(worker);
+        evicting.remove(worker);
+        LinkedHashMap<String, WorkInfo.State> removed = works.remove(worker);
+        if (removed != null) unconfirmed.removeAll(removed.keySet());
+        if (watch != null) handler.post(() -> watch.data.removeObserver(watch.observer));
+    }
+
+    synchronized void unwatchAll() {
+        for (String worker : new ArrayList<>(watches.keySet())) unwatch(worker);
+    }
+
+    synchronized boolean isWatched(String worker) {
+        return watches.containsKey(worker);
+    }
+
+    /**
+     * @return the worker's unfinished works, along with the ones admitted but not added yet
+     */
+    synchronized int depth(String worker) {
+        LinkedHashMap<String, WorkInfo.State> pending = works.get(worker);
+        return pending != null ? pending.size() + held(reserved, worker) : 0;
+    }
+
+    /**
+     * Applies the worker's overflow policy to new works and reserves their room, so producers on other threads
+     * can't take it before the works are added. Workers that aren't watched take any work
+     * @param count how many works are about to be enqueued
+     * @return what to do with the new works, null if they must be rejected
+     */
+    @Nullable
+    synchronized Admission admit(String worker, int count, int maxPending, String overflowPolicy) {
+        if (!works.containsKey(worker)) return new Admission(worker, count, 0);
+
+        int admitted = count;
+        int dropped = 0;
+        int overflow = depth(worker) + count - maxPending;
+        if (overflow > 0) {
+            Metrics.increment("backpressure.overflow");
+            switch (overflowPolicy) {
+                case "dropOldest":
+                    // Works that already started can't be dropped, and neither can the ones other admissions drop
+                    if (evictable(worker) - held(evicting, worker) < overflow) return null;
+                    dropped = overflow;
+                    break;
+                case "coalesce":
+                    admitted = Math.max(0, count - overflow);
+                    break;
+                default:
+                    return null;
+            }
+        }
+
+        Admission admission = new Admission(worker, admitted, dropped);
+        admission.reserved = admitted;
+        admission.evicting = dropped;
+        hold(reserved, worker, admitted);
+        hold(evicting, worker, dropped);
+        return admission;
+    }
+
+    /**
+     * Gives back what the admission still holds, the room of works that weren't added and the drops it didn't make
+     */
+    synchronized void release(Admission admission) {
+        hold(reserved, admission.worker, -admission.reserved);
+        hold(evicting, admission.worker, -admission.evicting);
+        admission.reserved = 0;
+        admission.evicting = 0;
+    }
+
+    /**
+     * Adds one of the admission's works in the room it reserved
+     */
+    synchronized void add(Admission admission, String id) {
+        if (admission.reserved > 0) {
+            admission.reserved--;
+            hold(reserved, admission.worker, -1);
+        }
+        add(admission.worker, id);
+    }
+
+    synchronized void add(String worker, String id) {
+        LinkedHashMap<String, WorkInfo.State> pending = works.get(worker);
+        if (pending == null) return;
+        pending.put(id, WorkInfo.State.ENQUEUED);
+        unconfirmed.add(id);
+    }
+
+    synchronized void remove(String worker, String id) {
+        LinkedHashMap<String, WorkInfo.State> pending = works.get(worker);
+        if (pending != null) pending.remove(id);
+        unconfirmed.remove(id);
+    }
+
+    /**
+     * @return how many of the worker's works could be evicted, the ones that haven't started yet
+     */
+    synchronized int evictable(String worker) {
+        LinkedHashMap<String, WorkInfo.State> pending = works.get(worker);
+        if (pending == null) return 0;
+        int evictable = 0;
+        for (WorkInfo.State state : pending.values()) if (state != WorkInfo.State.RUNNING) evictable++;
+        return evictable;
+    }
+
+    /**
+     * Removes and returns the oldest works the admission drops, only works that haven't started yet
+     * @param kept works that are never evicted, eg: the ones the eviction makes room for
+     */
+    synchronized List<String> evictOldest(Admission admission, Collection<String> kept) {
+        int count = admission.evicting;
+        hold(evicting, admission.worker, -count);
+        admission.evicting = 0;
+
+        List<String> evicted = new ArrayList<>();
+        LinkedHashMap<String, WorkInfo.State> pending = works.get(admission.worker);
+        if (pending == null) return evicted;
+
+        Iterator<Map.Entry<String, WorkInfo.State>> iterator = pending.entrySet().iterator();
+        while (iterator.hasNext() && evicted.size() < count) {
+            Map.Entry<String, WorkInfo.State> entry = iterator.next();
+            if (entry.getValue() == WorkInfo.State.RUNNING || kept.contains(entry.getKey())) continue;
+            evicted.add(entry.getKey());
+            unconfirmed.remove(entry.getKey());
+            iterator.remove();
+        }
+        return evicted;
+    }
+
+    private int held(Map<String, Integer> held, String worker) {
+        Integer count = held.get(worker);
+        return count != null ? count : 0;
+    }
+
+    private void hold(Map<String, Integer> held, String worker, int delta) {
+        // Whatever was held for a worker that isn't watched anymore was dropped along with it
+        if (delta == 0 || !works.containsKey(worker)) return;
+        int count = held(held, worker) + delta;
+        if (count > 0) held.put(worker, count);
+        else held.remove(worker);
+    }
+
+    private synchronized void update(String worker, List<WorkInfo> infos) {
+        LinkedHashMap<String, WorkInfo.State> previous = works.get(worker);
+        if (previous == null || infos == null) return;
+
+        Map<String, WorkInfo.State> current = new HashMap<>();
+        Set<String> reported = new HashSet<>();
+        for (WorkInfo info : infos) {
+            String id = info.getId().toString();
+            reported.add(id);
+            unconfirmed.remove(id);
+            if (!info.getState().isFinished()) current.put(id, info.getState());
+        }
+
+        // Works we didn't know were enqueued before we started tracking, so they go ahead of ours. Keep the enqueue
+        // order for the works we know, WorkManager doesn't report them in order
+        LinkedHashMap<String, WorkInfo.State> next = new LinkedHashMap<>();
+        for (Map.Entry<String, WorkInfo.State> entry : current.entrySet())
+            if (!previous.containsKey(entry.getKey())) next.put(entry.getKey(), entry.getValue());
+        for (String id : previous.keySet()) {
+            if (current.containsKey(id)) next.put(id, current.get(id));
+            else if (!reported.contains(id) && unconfirmed.contains(id)) next.put(id, previous.get(id));
+        }
+        works.put(worker, next);
+    }
+
+}
@@ -0,0 +1,146 @@
+package com.backgroundworker;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import io.reactivex.Maybe;
+import io.reactivex.MaybeEmitter;
+
+/**
+ * Caps how many works of the same worker run at once, works over the cap wait without blocking any thread until a
+ * running one finishes. A waiting work still holds one of WorkManager's slots, so only the worker's waiting capacity
+ * waits, none by default, the others are turned away
+ */
+final class PermitPool {
+
+    static final class Permit {
+        private final PermitPool pool;
+        private final AtomicBoolean claimed = new AtomicBoolean(false);
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        private Permit(PermitPool pool) {
+            this.pool = pool;
+        }
+
+        /**
+         * Must be called as soon as the permit is received, an unclaimed permit is given back when the work goes away
+         */
+        void claim() {
+            claimed.set(true);
+        }
+
+        void release() {
+            if (released.compareAndSet(false, true)) pool.release();
+        }
+    }
+
+    private static final class Waiter {
+        final MaybeEmitter<Permit> emitter;
+        final long since = System.nanoTime();
+        Permit permit;
+
+        Waiter(MaybeEmitter<Permit> emitter) {
+            this.emitter = emitter;
+        }
+    }
+
+    private static final Map<String, PermitPool> pools = new HashMap<>();
+
+    private final ArrayDeque<Waiter> waiting = new ArrayDeque<>();
+    private int permits;
+    private int inUse;
+    private volatile int capacity;
+
+    private PermitPool(int permits) {
+        this.permits = permits;
+    }
+
+    /**
+     * @param capacity how many works may wait for a permit
+     */
+    static PermitPool forWorker(String worker, int permits, int capacity) {
+        PermitPool pool;
+        synchronized (pools) {
+            pool = pools.get(worker);
+            if (pool == null) {
+                pool = new PermitPool(permits);
+                pools.put(worker, pool);
+            }
+        }
+        // Works already waiting keep their place when the capacity shrinks
+        pool.capacity = capacity;
+        if (pool.permits != permits) pool.resize(permits);
+        return pool;
+    }
+
+    /**
+     * @return completes without a permit when the pool is in use and its waiting capacity is full
+     */
+    Maybe<Permit> acquire() {
+        return Maybe.create(emitter -> {
+            Waiter waiter = new Waiter(emitter);
+            emitter.setCancellable(() -> cancel(waiter));
+
+            synchronized (this) {
+                if (inUse < permits) {
+                    inUse++;
+                    waiter.permit = new Permit(this);
+                } else if (waiting.size() < capacity) {
+                    waiting.add(waiter);
+                    Metrics.max("concurrency.maxWaiting", waiting.size());
+                    return;
+                }
+            }
+            // Neither granted nor waiting, the work is better off giving its slot back
+            if (waiter.permit == null) emitter.onComplete();
+            else emitter.onSuccess(waiter.permit);
+        });
+    }
+
+    private void cancel(Waiter waiter) {
+        Permit granted;
+        synchronized (this) {
+            granted = waiter.permit;
+            if (granted == null) {
+                waiting.remove(waiter);
+                return;
+            }
+        }
+        // Handed over while the work was going away, nobody will release it otherwise
+        if (!granted.claimed.get()) granted.release();
+    }
+
+    private void release() {
+        Waiter next = null;
+        synchronized (this) {
+            if (inUse <= permits) next = waiting.poll();
+            if (next == null) {
+                inUse--;
+                return;
+            }
+            next.permit = new Permit(this);
+        }
+
+        Metrics.increment("concurrency.waited");
+        Metrics.add("concurrency.waitMillis", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - next.since));
+        next.emitter.onSuccess(next.permit);
+    }
+
+    private void resize(int permits) {
+        ArrayDeque<Waiter> granted = new ArrayDeque<>();
+        synchronized (this) {
+            this.permits = permits;
+            while (inUse < permits && !waiting.isEmpty()) {
+                Waiter next = waiting.poll();
+                inUse++;
+                next.permit = new Permit(this);
+                granted.add(next);
+            }
+        }
+        for (Waiter waiter : granted) waiter.emitter.onSuccess(waiter.permit);
+    }
+
+}
@@ -0,0 +1,78 @@
+package com.backgroundworker;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.Nullable;
+import androidx.lifecycle.Lifecycle;
+import androidx.lifecycle.LifecycleEventObserver;
+import androidx.lifecycle.ProcessLifecycleOwner;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.reactivex.Completable;
+import io.reactivex.Single;
+import io.reactivex.subjects.BehaviorSubject;
+
+/**
+ * Tracks whether the app is in foreground through the ProcessLifecycleOwner, so works don't need to ask JS about it
+ */
+final class ProcessState {
+
+    // A parked work keeps its WorkManager slot, past this many the others give theirs back so other workers still run
+    static final int MAX_PARKED = 4;
+
+    private static final Handler handler = new Handler(Looper.getMainLooper());
+    private static final BehaviorSubject<Boolean> foreground = BehaviorSubject.create();
+    private static final AtomicBoolean observing = new AtomicBoolean();
+    private static final AtomicInteger parked = new AtomicInteger();
+
+    private ProcessState() {}
+
+    private static void observe() {
+        if (!observing.compareAndSet(false, true)) return;
+        // Lifecycles can only be observed from the main thread
+        handler.post(() -> {
+            Lifecycle lifecycle = ProcessLifecycleOwner.get().getLifecycle();
+            foreground.onNext(lifecycle.getCurrentState().isAtLeast(Lifecycle.State.STARTED));
+            lifecycle.addObserver((LifecycleEventObserver) (source, event) -> {
+                if (event == Lifecycle.Event.ON_START) foreground.onNext(true);
+                else if (event == Lifecycle.Event.ON_STOP) foreground.onNext(false);
+            });
+        });
+    }
+
+    static Single<Boolean> isForeground() {
+        observe();
+        return foreground.firstOrError();
+    }
+
+    /**
+     * Completes as soon as the app is in background, every work waiting on it is released at once
+     */
+    static Completable awaitBackground() {
+        observe();
+        return foreground.filter(isForeground -> !isForeground).firstOrError().ignoreElement();
+    }
+
+    /**
+     * Like awaitBackground, but only for up to MAX_PARKED works at once
+     * @return null when too many works are already parked
+     */
+    @Nullable
+    static Completable park() {
+        int count;
+        do {
+            count = parked.get();
+            if (count >= MAX_PARKED) return null;
+        } while (!parked.compareAndSet(count, count + 1));
+
+        Metrics.max("blocking.maxParked", count + 1);
+        AtomicBoolean unparked = new AtomicBoolean();
+        return awaitBackground().doFinally(() -> {
+            if (unparked.compareAndSet(false, true)) parked.decrementAndGet();
+        });
+    }
+
+}
@@ -0,0 +1,98 @@
+package com.backgroundworker;
+
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Token buckets shared by all the works of a worker, a work reserves a token before it's dispatched to JS
+ * and waits until the token is available instead of retrying
+ */
+final class RateLimiter {
+
+    // A waiting work keeps its WorkManager slot, past this many per worker the others give theirs back
+    static final int MAX_WAITING = 4;
+
+    private static class Bucket {
+        final double tokens;
+        final long interval;
+        final double burst;
+        double available;
+        long updatedAt;
+        int waiting;
+
+        Bucket(double tokens, long interval, double burst, long now) {
+            this.tokens = tokens;
+            this.interval = interval;
+            this.burst = burst;
+            this.available = burst;
+            this.updatedAt = now;
+        }
+
+        boolean matches(double tokens, long interval, double burst) {
+            return this.tokens == tokens && this.interval == interval && this.burst == burst;
+        }
+    }
+
+    private static final Map<String, Bucket> buckets = new HashMap<>();
+
+    private RateLimiter() {}
+
+    /**
+     * Reserves a token for the worker
+     * @param worker the worker's name
+     * @param tokens how many tokens are added each interval
+     * @param interval the refill interval in milliseconds
+     * @param burst the most tokens the bucket holds
+     * @param maxWait the longest a work may wait for its token
+     * @return how long to wait before the token is available, -1 if that's longer than maxWait or too many works
+     *         are already waiting, in which case nothing is reserved. A work told to wait must call waited or refund
+     */
+    static synchronized long reserve(String worker, double tokens, long interval, double burst, long maxWait) {
+        // Wall clock changes would add or take tokens
+        long now = SystemClock.elapsedRealtime();
+        Bucket bucket = buckets.get(worker);
+        if (bucket == null || !bucket.matches(tokens, interval, burst)) {
+            bucket = new Bucket(tokens, interval, burst, now);
+            buckets.put(worker, bucket);
+        }
+
+        bucket.available = Math.min(bucket.burst, bucket.available + (now - bucket.updatedAt) * bucket.tokens / bucket.interval);
+        bucket.updatedAt = now;
+
+        if (bucket.available >= 1) {
+            bucket.available -= 1;
+            return 0;
+        }
+
+        // Tokens already reserved by waiting works make the balance negative, so the wait grows with the line
+        long wait = (long) Math.ceil((1 - bucket.available) * bucket.interval / bucket.tokens);
+        if (wait > maxWait || bucket.waiting >= MAX_WAITING) return -1;
+        bucket.available -= 1;
+        bucket.waiting++;
+        Metrics.max("rateLimit.maxWaiting", bucket.waiting);
+        return wait;
+    }
+
+    /**
+     * Called when a work's wait for its token is over
+     * @param worker the worker's name
+     */
+    static synchronized void waited(String worker) {
+        Bucket bucket = buckets.get(worker);
+        if (bucket != null) bucket.waiting = Math.max(0, bucket.waiting - 1);
+    }
+
+    /**
+     * Gives back the token of a work that went away while waiting for it, so it doesn't delay the next ones
+     * @param worker the worker's name
+     */
+    static synchronized void refund(String worker) {
+        Bucket bucket = buckets.get(worker);
+        if (bucket == null) return;
+        bucket.available = Math.min(bucket.burst, bucket.available + 1);
+        bucket.waiting = Math.max(0, bucket.waiting - 1);
+    }
+
+}
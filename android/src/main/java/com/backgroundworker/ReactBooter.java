@@ -0,0 +1,116 @@
+package com.backgroundworker;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.facebook.react.ReactApplication;
+import com.facebook.react.ReactInstanceManager;
+import com.facebook.react.bridge.ReactApplicationContext;
+import com.facebook.react.bridge.ReactContext;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.Completable;
+import io.reactivex.Observable;
+import io.reactivex.subjects.PublishSubject;
+import io.reactivex.subjects.Subject;
+
+/**
+ * Starts React without any activity when a work runs before the app did, and waits until JS registered
+ * the work's worker, so the work can be dispatched instead of retried
+ */
+final class ReactBooter {
+
+    private static final String TAG = "ReactBooter";
+
+    private static final Handler handler = new Handler(Looper.getMainLooper());
+    // Guarded by the class lock
+    private static final Set<String> registered = new HashSet<>();
+    private static final Subject<Boolean> registrations = PublishSubject.<Boolean>create().toSerialized();
+
+    private ReactBooter() {}
+
+    static void workerRegistered(String name) {
+        synchronized (ReactBooter.class) {
+            if (!registered.add(name)) return;
+        }
+        // Outside the lock, the works waiting for this worker resume on this thread before moving to their own
+        registrations.onNext(true);
+    }
+
+    /**
+     * Called when the JS runtime goes away, its registrations go with it
+     */
+    static synchronized void reset() {
+        registered.clear();
+    }
+
+    private static synchronized boolean isRegistered(String name) {
+        return registered.contains(name);
+    }
+
+    /**
+     * Completes once React is running and JS registered the worker, errors with a TimeoutException otherwise
+     * @param context the application context
+     * @param name the worker's name
+     * @param timeout how long to wait, in milliseconds
+     */
+    static Completable awaitWorker(Context context, String name, long timeout) {
+        return boot(context)
+                // Subscribed to the registrations before checking, so one can't slip in between
+                .andThen(Observable.merge(registrations, Observable.just(true))
+                        .filter(change -> isRegistered(name))
+                        .firstOrError()
+                        .ignoreElement())
+                .timeout(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    private static Completable boot(Context context) {
+        return Completable.create(emitter -> {
+            ReactApplicationContext running = BackgroundWorkerModule.context;
+            if (running != null && running.hasActiveCatalystInstance()) {
+                emitter.onComplete();
+                return;
+            }
+
+            Context application = context.getApplicationContext();
+            if (!(application instanceof ReactApplication)) {
+                emitter.onError(new IllegalStateException("Application doesn't implement ReactApplication"));
+                return;
+            }
+
+            handler.post(() -> {
+                ReactInstanceManager manager = ((ReactApplication) application).getReactNativeHost().getReactInstanceManager();
+
+                ReactInstanceManager.ReactInstanceEventListener listener = new ReactInstanceManager.ReactInstanceEventListener() {
+                    @Override
+                    public void onReactContextInitialized(ReactContext reactContext) {
+                        manager.removeReactInstanceEventListener(this);
+                        // Makes sure the module, and so its context, exists before the work is dispatched
+                        reactContext.getNativeModule(BackgroundWorkerModule.class);
+                        emitter.onComplete();
+                    }
+                };
+                emitter.setCancellable(() -> handler.post(() -> manager.removeReactInstanceEventListener(listener)));
+
+                ReactContext current = manager.getCurrentReactContext();
+                if (current != null) {
+                    listener.onReactContextInitialized(current);
+                    return;
+                }
+
+                manager.addReactInstanceEventListener(listener);
+                if (!manager.hasStartedCreatingInitialContext()) {
+                    Log.i(TAG, "Starting React in the background");
+                    Metrics.increment("boot.started");
+                    manager.createReactContextInBackground();
+                }
+            });
+        });
+    }
+
+}
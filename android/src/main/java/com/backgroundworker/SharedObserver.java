@@ -0,0 +1,113 @@
+package com.backgroundworker;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.Observer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A LiveData observer shared by every JS subscriber of the same source, it's only removed when the last one leaves.
+ * Subscribers may ask for a minimum interval between emissions, the changes in between are coalesced into the
+ * latest one. The shortest interval asked is used here, JS throttles each subscriber to its own on top of it
+ */
+abstract class SharedObserver<T> implements Observer<T> {
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable flush = this::flush;
+    // The same instance has to be used to observe and to stop observing
+    private final LiveData<T> data;
+    private final List<Long> intervals = new ArrayList<>();
+    // Only touched from the main thread
+    private long lastEmission = 0;
+    private T pending;
+
+    SharedObserver(LiveData<T> data, long minInterval) {
+        this.data = data;
+        intervals.add(minInterval);
+    }
+
+    synchronized void subscribe(long minInterval) {
+        intervals.add(minInterval);
+    }
+
+    /**
+     * @param minInterval the interval the subscriber asked for
+     * @return whether this was the last subscriber
+     */
+    synchronized boolean unsubscribe(long minInterval) {
+        intervals.remove(Long.valueOf(minInterval));
+        return intervals.isEmpty();
+    }
+
+    synchronized int getSubscribers() {
+        return intervals.size();
+    }
+
+    private synchronized long getMinInterval() {
+        long min = Long.MAX_VALUE;
+        for (long interval : intervals) min = Math.min(min, interval);
+        return intervals.isEmpty() ? 0 : min;
+    }
+
+    /**
+     * Must be called from the main thread, the current value is delivered right away when there's one
+     */
+    void observe() {
+        data.observeForever(this);
+    }
+
+    /**
+     * Must be called from the main thread
+     */
+    void stop() {
+        data.removeObserver(this);
+        handler.removeCallbacks(flush);
+        pending = null;
+    }
+
+    @Override
+    public final void onChanged(T value) {
+        if (value == null) return;
+
+        long wait = lastEmission + getMinInterval() - SystemClock.uptimeMillis();
+        if (wait <= 0 || isFinal(value)) {
+            handler.removeCallbacks(flush);
+            pending = null;
+            emitNow(value);
+            return;
+        }
+
+        if (pending != null) Metrics.increment("listeners.coalesced");
+        else handler.postDelayed(flush, wait);
+        pending = value;
+    }
+
+    private void flush() {
+        T value = pending;
+        pending = null;
+        if (value != null) emitNow(value);
+    }
+
+    private void emitNow(T value) {
+        if (emit(value)) lastEmission = SystemClock.uptimeMillis();
+    }
+
+    /**
+     * Sends the value to JS, called from the main thread
+     * @return whether anything was sent, values JS wouldn't see as a change are skipped
+     */
+    abstract boolean emit(T value);
+
+    /**
+     * Values that won't change anymore skip the interval, so JS doesn't wait for them
+     */
+    boolean isFinal(T value) {
+        return false;
+    }
+
+}
@@ -0,0 +1,51 @@
+package com.backgroundworker;
+
+import android.os.Bundle;
+
+import androidx.work.WorkInfo;
+import androidx.work.WorkManager;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.ReactApplicationContext;
+import com.facebook.react.modules.core.DeviceEventManagerModule;
+
+import java.util.UUID;
+
+/**
+ * Observes one work for every JS subscriber of it, which receive its single "info" event through the JS emitter
+ */
+final class WorkInfoListener extends SharedObserver<WorkInfo> {
+
+    private final ReactApplicationContext context;
+    private final String id;
+    // Last info sent to JS, only touched from the main thread
+    private Bundle emitted;
+
+    WorkInfoListener(ReactApplicationContext context, String id, long minInterval) {
+        super(WorkManager.getInstance(context).getWorkInfoByIdLiveData(UUID.fromString(id)), minInterval);
+        this.context = context;
+        this.id = id;
+    }
+
+    @Override
+    boolean emit(WorkInfo workInfo) {
+        Bundle info = Parser.getWorkInfo(workInfo);
+        // LiveData redelivers infos that only differ in fields JS doesn't see
+        if (Parser.isSameWorkInfo(info, emitted)) {
+            Metrics.increment("listeners.suppressed");
+            return false;
+        }
+
+        emitted = info;
+        Metrics.increment("listeners.emitted");
+        context.getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
+                .emit(id + "info", Arguments.fromBundle(info));
+        return true;
+    }
+
+    @Override
+    boolean isFinal(WorkInfo workInfo) {
+        return workInfo.getState().isFinished();
+    }
+
+}
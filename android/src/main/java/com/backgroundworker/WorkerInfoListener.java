@@ -0,0 +1,79 @@
+package com.backgroundworker;
+
+import android.os.Bundle;
+
+import androidx.work.WorkInfo;
+import androidx.work.WorkManager;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.ReactApplicationContext;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+import com.facebook.react.modules.core.DeviceEventManagerModule;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Observes every work of a worker with a single tag query, and emits only the works that changed since the
+ * last emission, together with the ones that are gone, in one "workerinfo" event
+ */
+final class WorkerInfoListener extends SharedObserver<List<WorkInfo>> {
+
+    private final ReactApplicationContext context;
+    private final String name;
+    // Last emitted info of each work, only touched from the main thread
+    private final Map<String, Bundle> emitted = new HashMap<>();
+
+    WorkerInfoListener(ReactApplicationContext context, String name, long minInterval) {
+        super(WorkManager.getInstance(context).getWorkInfosByTagLiveData(name), minInterval);
+        this.context = context;
+        this.name = name;
+    }
+
+    @Override
+    boolean emit(List<WorkInfo> workInfos) {
+        WritableArray changed = Arguments.createArray();
+        WritableArray removed = Arguments.createArray();
+        Set<String> current = new HashSet<>();
+
+        for (WorkInfo workInfo : workInfos) {
+            String id = workInfo.getId().toString();
+            current.add(id);
+
+            Bundle info = Parser.getWorkInfo(workInfo);
+            if (Parser.isSameWorkInfo(info, emitted.get(id))) continue;
+
+            info.putString("id", id);
+            emitted.put(id, info);
+            changed.pushMap(Arguments.fromBundle(info));
+        }
+
+        // Finished works are eventually pruned by WorkManager
+        Iterator<String> ids = emitted.keySet().iterator();
+        while (ids.hasNext()) {
+            String id = ids.next();
+            if (current.contains(id)) continue;
+            ids.remove();
+            removed.pushString(id);
+        }
+
+        if (changed.size() == 0 && removed.size() == 0) {
+            Metrics.increment("listeners.suppressed");
+            return false;
+        }
+        Metrics.increment("listeners.emitted");
+
+        WritableMap diff = Arguments.createMap();
+        diff.putArray("changed", changed);
+        diff.putArray("removed", removed);
+        context.getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
+                .emit(name + "workerinfo", diff);
+        return true;
+    }
+
+}
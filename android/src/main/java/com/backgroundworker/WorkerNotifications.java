@@ -0,0 +1,77 @@
+package com.backgroundworker;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.content.Context;
+
+import androidx.annotation.RequiresApi;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Builds the headless service's foreground notifications. The channel, the icon and the builder are set up once
+ * per worker, tasks only change the texts
+ */
+@RequiresApi(api = android.os.Build.VERSION_CODES.O)
+final class WorkerNotifications {
+
+    // Channels and resources outlive the service, so they are resolved once per process
+    private static final Set<String> channels = new HashSet<>();
+    private static final Map<String, Integer> icons = new HashMap<>();
+
+    private final Context context;
+    private final Map<String, Notification.Builder> builders = new HashMap<>();
+
+    WorkerNotifications(Context context) {
+        this.context = context;
+    }
+
+    Notification build(String name, String title, String text) {
+        return getBuilder(name)
+                .setWhen(System.currentTimeMillis())
+                .setContentText(text)
+                .setContentTitle(title)
+                .build();
+    }
+
+    private Notification.Builder getBuilder(String name) {
+        Notification.Builder builder = builders.get(name);
+        if (builder != null) return builder;
+
+        synchronized (channels) {
+            if (channels.add(name)) {
+                NotificationManager notificationManager =
+                    (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+                notificationManager.createNotificationChannel(
+                    new NotificationChannel(name, name, NotificationManager.IMPORTANCE_MIN)
+                );
+            }
+        }
+
+        builder = new Notification.Builder(context, name).setSmallIcon(getIcon(name));
+        builders.put(name, builder);
+        return builder;
+    }
+
+    private int getIcon(String name) {
+        synchronized (icons) {
+            Integer icon = icons.get(name);
+            if (icon != null) return icon;
+
+            int customIcon = context.getResources().getIdentifier(
+                name,
+                "drawable",
+                context.getApplicationContext().getPackageName()
+            );
+
+            icon = customIcon != 0 ? customIcon : android.R.drawable.ic_menu_info_details;
+            icons.put(name, icon);
+            return icon;
+        }
+    }
+
+}
@@ -0,0 +1,211 @@
+package com.backgroundworker;
+
+import android.util.Base64;
+
+import androidx.work.BackoffPolicy;
+import androidx.work.Constraints;
+import androidx.work.Data;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.PeriodicWorkRequest;
+import androidx.work.WorkRequest;
+
+import com.facebook.react.bridge.ReadableMap;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+/**
+ * Worker configuration compiled once at registration, so building a request only has to merge the payload
+ */
+final class WorkerTemplate {
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+    static final int DEFAULT_MAX_BATCH_SIZE = 50;
+    static final long DEFAULT_MAX_LATENCY = 1000;
+
+    final String name;
+    final String type;
+    private final Data baseData;
+    @Nullable private final Constraints constraints;
+    private final Set<String> tags;
+    @Nullable private final BackoffPolicy backoffPolicy;
+    private final long backoffDelay;
+    @Nullable private final String compression;
+    private final int compressionThreshold;
+    final int maxBatchSize;
+    final long maxLatency;
+    final int maxPending;
+    final String overflowPolicy;
+
+    private WorkerTemplate(String name, String type, Data baseData, @Nullable Constraints constraints, Set<String> tags,
+                           @Nullable BackoffPolicy backoffPolicy, long backoffDelay,
+                           @Nullable String compression, int compressionThreshold,
+                           int maxBatchSize, long maxLatency, int maxPending, String overflowPolicy) {
+        this.name = name;
+        this.type = type;
+        this.baseData = baseData;
+        this.constraints = constraints;
+        this.tags = tags;
+        this.backoffPolicy = backoffPolicy;
+        this.backoffDelay = backoffDelay;
+        this.compression = compression;
+        this.compressionThreshold = compressionThreshold;
+        this.maxBatchSize = maxBatchSize;
+        this.maxLatency = maxLatency;
+        this.maxPending = maxPending;
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * @param worker the worker information sent by JS, must contain name and type
+     * @param constraints the worker constraints
+     */
+    static WorkerTemplate compile(ReadableMap worker, @Nullable ReadableMap constraints) {
+        String name = worker.getString("name");
+        String type = worker.getString("type");
+
+        // Data only holds primitives, anything else sent by JS is configuration for the JS side only
+        Map<String, Object> values = new HashMap<>();
+        for (Map.Entry<String, Object> entry : worker.toHashMap().entrySet()) {
+            Object value = entry.getValue();
+            if (value instanceof String || value instanceof Number || value instanceof Boolean)
+                values.put(entry.getKey(), value);
+        }
+
+        // The rate limit is enforced by the worker, so it travels flattened with the work
+        ReadableMap rateLimit = worker.hasKey("rateLimit") ? worker.getMap("rateLimit") : null;
+        if (rateLimit != null && rateLimit.hasKey("tokens") && rateLimit.hasKey("interval")) {
+            double tokens = rateLimit.getDouble("tokens");
+            values.put("rateTokens", tokens);
+            values.put("rateInterval", rateLimit.getDouble("interval"));
+            values.put("rateBurst", rateLimit.hasKey("burst") ? rateLimit.getDouble("burst") : Math.max(1, tokens));
+        }
+
+        Set<String> tags = new LinkedHashSet<>();
+        tags.add(name);
+
+        BackoffPolicy backoffPolicy = worker.hasKey("backoffPolicy")
+                ? Parser.getBackoffPolicy(worker.getString("backoffPolicy"))
+                : null;
+        long backoffDelay = worker.hasKey("backoffDelay")
+                ? Math.max(WorkRequest.MIN_BACKOFF_MILLIS, (long) (worker.getDouble("backoffDelay") * 1000))
+                : WorkRequest.DEFAULT_BACKOFF_DELAY_MILLIS;
+
+        String compression = worker.hasKey("compression") && PayloadCompressor.DEFLATE.equals(worker.getString("compression"))
+                ? PayloadCompressor.DEFLATE
+                : null;
+        int compressionThreshold = worker.hasKey("compressionThreshold")
+                ? worker.getInt("compressionThreshold")
+                : PayloadCompressor.DEFAULT_THRESHOLD;
+
+        int maxBatchSize = worker.hasKey("maxBatchSize")
+                ? Math.max(1, worker.getInt("maxBatchSize"))
+                : DEFAULT_MAX_BATCH_SIZE;
+        long maxLatency = worker.hasKey("maxLatency")
+                ? Math.max(0, (long) worker.getDouble("maxLatency"))
+                : DEFAULT_MAX_LATENCY;
+
+        int maxPending = worker.hasKey("maxPending") ? Math.max(0, worker.getInt("maxPending")) : 0;
+        String overflowPolicy = worker.hasKey("overflowPolicy") ? worker.getString("overflowPolicy") : "reject";
+
+        return new WorkerTemplate(
+                name,
+                type,
+                new Data.Builder().putAll(values).build(),
+                Parser.getConstraints(constraints),
+                Collections.unmodifiableSet(tags),
+                backoffPolicy,
+                backoffDelay,
+                compression,
+                compressionThreshold,
+                maxBatchSize,
+                maxLatency,
+                maxPending,
+                overflowPolicy
+        );
+    }
+
+    boolean isBatch() {
+        return "batch".equals(type);
+    }
+
+    boolean isCapped() {
+        return maxPending > 0 && !isBatch();
+    }
+
+    /**
+     * @param payload the JSON payload, stored in the payload store when it doesn't fit in Data
+     * @param store where payloads above the spill threshold are written
+     */
+    OneTimeWorkRequest newRequest(@Nullable String payload, PayloadStore store) throws IOException {
+        OneTimeWorkRequest.Builder builder = apply(new OneTimeWorkRequest.Builder(BackgroundWorker.class));
+        Data.Builder inputData = new Data.Builder().putAll(baseData);
+
+        byte[] bytes = payload != null ? payload.getBytes(UTF_8) : null;
+        String encoding = null;
+
+        if (bytes != null && compression != null && bytes.length > compressionThreshold) {
+            byte[] compressed = PayloadCompressor.deflate(bytes);
+            if (compressed.length < bytes.length) {
+                bytes = compressed;
+                encoding = compression;
+            }
+        }
+
+        // Compressed payloads go into Data as base64, which takes 4 characters for every 3 bytes
+        int encodedLength = bytes == null ? 0 : encoding != null ? 4 * ((bytes.length + 2) / 3) : bytes.length;
+        if (bytes != null && encodedLength > PayloadStore.SPILL_THRESHOLD) {
+            String ref = store.put(bytes);
+            inputData.putString("payloadRef", ref);
+            builder.addTag(PayloadStore.tagFor(ref));
+        }
+        // Data stores byte arrays boxed, a base64 string is far more compact
+        else if (encoding != null) inputData.putString("payload", Base64.encodeToString(bytes, Base64.NO_WRAP));
+        else inputData.putString("payload", payload);
+
+        if (encoding != null) inputData.putString("payloadEncoding", encoding);
+
+        return builder
+                .setInputData(inputData.build())
+                .build();
+    }
+
+    /**
+     * Builds a request whose payload lives in a coalescing slot, so it can still change until the work starts
+     * @param slot the slot holding the payload
+     */
+    OneTimeWorkRequest newCoalescedRequest(String slot) {
+        Data inputData = new Data.Builder()
+                .putAll(baseData)
+                .putString("payloadSlot", slot)
+                .build();
+
+        // Tagged so the slot can be released when the work is cancelled before taking it
+        return apply(new OneTimeWorkRequest.Builder(BackgroundWorker.class))
+                .addTag(CoalescedPayloads.tagFor(slot))
+                .setInputData(inputData)
+                .build();
+    }
+
+    PeriodicWorkRequest newPeriodicRequest(long repeatInterval) {
+        return apply(new PeriodicWorkRequest.Builder(BackgroundWorker.class, repeatInterval, TimeUnit.MINUTES))
+                .setInputData(baseData)
+                .build();
+    }
+
+    private <B extends WorkRequest.Builder<B, ?>> B apply(B builder) {
+        if (constraints != null) builder.setConstraints(constraints);
+        if (backoffPolicy != null) builder.setBackoffCriteria(backoffPolicy, backoffDelay, TimeUnit.MILLISECONDS);
+        for (String tag : tags) builder.addTag(tag);
+        return builder;
+    }
+
+}
@@ -1,4 +1,4 @@
-import { NativeModules, AppRegistry, AppState, NativeAppEventEmitter, EmitterSubscription } from "react-native"
+import { NativeModules, AppRegistry, NativeAppEventEmitter, EmitterSubscription } from "react-native"
 
 // Improved type definitions with better constraints
 type NetworkConstraint = "connected" | "metered" | "notRoaming" | "unmetered" | "notRequired"
@@ -6,8 +6,12 @@ type BatteryConstraint = "charging" | "notLow" | "notRequired"
 type StorageConstraint = "notLow" | "notRequired"
 type IdleConstraint = "idle" | "notRequired"
 type ForegroundBehaviour = "headlessTask" | "foreground" | "blocking"
-type WorkerType = "periodic" | "queue"
+type WorkerType = "periodic" | "queue" | "batch"
 type WorkResult = "success" | "failure" | "retry"
+type BackoffPolicy = "exponential" | "linear"
+type UniquePolicy = "keep" | "replace" | "append" | "coalesce"
+type OverflowPolicy = "reject" | "dropOldest" | "coalesce"
+type TimeoutBehaviour = "retry" | "failure"
 
 interface WorkerConstraints {
     network?: NetworkConstraint
@@ -16,6 +20,12 @@ interface WorkerConstraints {
     idle?: IdleConstraint
 }
 
+interface WorkerRateLimit {
+    tokens: number
+    interval: number
+    burst?: number
+}
+
 interface WorkerNotification {
     title: string
     text: string
@@ -25,7 +35,20 @@ interface GenericWorker<T extends WorkerType> {
     type: T
     name: string
     timeout?: number
+    timeoutBehaviour?: TimeoutBehaviour
+    onCancel?: (event: { id: string, reason: string }) => void
     foregroundBehaviour?: ForegroundBehaviour
+    keepAlive?: number
+    headlessConcurrency?: number
+    backoffPolicy?: BackoffPolicy
+    backoffDelay?: number
+    compression?: "deflate"
+    compressionThreshold?: number
+    maxPending?: number
+    overflowPolicy?: OverflowPolicy
+    rateLimit?: WorkerRateLimit
+    concurrency?: number
+    concurrencyWaiting?: number
     constraints?: WorkerConstraints
     notification: WorkerNotification
 }
@@ -44,15 +67,71 @@ interface PeriodicWorker<T extends "periodic"> extends GenericWorker<T> {
 
 export const isPeriodicWorker = (worker: any): worker is PeriodicWorker<"periodic"> => worker.type && worker.type==="periodic"
 
-export type Worker<P,V,T extends "queue"|"periodic"> = T extends "queue" ? QueueWorker<P,V,T> : T extends "periodic" ? PeriodicWorker<T> : never
+interface BatchWorker<P,V,T extends "batch"> extends GenericWorker<T> {
+    workflow: (payloads: P[]) => Promise<{ result: "success" | "failure" | "retry", value: V }[]>
+    maxBatchSize?: number,
+    maxLatency?: number,
+    repeatInterval?: never,
+}
+
+export const isBatchWorker = (worker: any): worker is BatchWorker<any,any,"batch"> => worker.type && worker.type==="batch"
+
+export type Worker<P,V,T extends WorkerType> =
+    T extends "queue" ? QueueWorker<P,V,T> :
+    T extends "periodic" ? PeriodicWorker<T> :
+    T extends "batch" ? BatchWorker<P,V,T> :
+    never
+
+const registeredWorkers = new Map<string, EmitterSubscription[]>();
+
+interface WorkListener {
+    subscription: EmitterSubscription
+    callbacks: Set<(info: WorkInfo<any>) => void>
+    last?: WorkInfo<any>
+}
+
+const workListeners = new Map<string, WorkListener>();
+
+interface WorkerListener {
+    subscription: EmitterSubscription
+    callbacks: Set<(diff: WorkerInfoDiff<any>) => void>
+    works: Map<string, WorkInfo<any> & { id: string }>
+}
+
+const workerListeners = new Map<string, WorkerListener>();
+
+// A batch work retried with only some of its payloads, which are sent as the value
+type ReportedResult = WorkResult | "retryItems"
+
+// What a partially retried batch carries to its next attempt: the retried payloads, their indices in the batch and
+// the results collected so far, one per payload of the batch
+type CarriedBatch = { indices: number[], payloads: any[], results: any[] }
 
-const registeredWorkers = new Map<string, EmitterSubscription>();
+// The attempt is sent back with the result, native ignores results of an attempt that already ended.
+// carried is only set for batch works that were partially retried, it replaces the payload
+type WorkEvent = { id: string; attempt: number; payload: string; carried?: string }
+
+let pendingResults: { id: string; attempt: number; value: string; result: ReportedResult }[] = [];
+
+/**
+ * Buffers a task's result, every result reported in the same tick is sent to native in a single call
+ */
+function reportResult({ id, attempt }: WorkEvent, value: string, result: ReportedResult): void {
+    if (pendingResults.length === 0) {
+        Promise.resolve().then(() => {
+            const results = pendingResults;
+            pendingResults = [];
+            NativeModules.BackgroundWorker.results(results);
+        });
+    }
+    pendingResults.push({ id, attempt, value, result });
+}
 
 async function setWorker<T extends WorkerType, P = any, V = any>(
     worker: Worker<P, V, T>
 ): Promise<T extends "periodic" ? string : void> {
     try {
-        const { workflow, constraints, notification, ..._worker } = worker;
+        const { workflow, constraints, notification, onCancel, ..._worker } = worker;
         const workerConfiguration = {
             repeatInterval: 15,
             timeout: 10,
@@ -61,20 +140,40 @@ async function setWorker<T extends WorkerType, P = any, V = any>(
             ...notification
         };
 
-        const work = async (data: { id: string; payload: string }) => {
+        const work = async (data: WorkEvent) => {
             try {
                 if (isPeriodicWorker(worker)) {
                     await worker.workflow();
-                    await NativeModules.BackgroundWorker.result(data.id, JSON.stringify(null), "success");
+                    reportResult(data, JSON.stringify(null), "success");
                 } else if (isQueueWorker(worker)) {
                     const { result, value } = await worker.workflow(JSON.parse(data.payload));
-                    await NativeModules.BackgroundWorker.result(data.id, JSON.stringify(value), result);
+                    reportResult(data, JSON.stringify(value), result);
+                } else if (isBatchWorker(worker)) {
+                    const carried: CarriedBatch | undefined = data.carried ? JSON.parse(data.carried) : undefined;
+                    const payloads: any[] = carried ? carried.payloads : JSON.parse(data.payload);
+                    const indices = carried ? carried.indices : payloads.map((_, index) => index);
+                    const collected: any[] = carried ? carried.results : payloads.map(() => null);
+                    const results = await worker.workflow(payloads);
+                    // Only the retried payloads run again in the work's next attempt, after the worker's backoff,
+                    // the others' results are kept at their index in the batch
+                    const retried: CarriedBatch = { indices: [], payloads: [], results: collected };
+                    payloads.forEach((payload, index) => {
+                        const result = results[index];
+                        if (result && result.result === "retry") {
+                            retried.indices.push(indices[index]);
+                            retried.payloads.push(payload);
+                        } else {
+                            collected[indices[index]] = result === undefined ? null : result;
+                        }
+                    });
+                    if (retried.payloads.length > 0) reportResult(data, JSON.stringify(retried), "retryItems");
+                    else reportResult(data, JSON.stringify(collected), "success");
                 } else {
                     throw new Error("Invalid worker type");
                 }
             } catch (error) {
-                await NativeModules.BackgroundWorker.result(
-                    data.id,
+                reportResult(
+                    data,
                     JSON.stringify(error instanceof Error ? error.message : error),
                     "failure"
                 );
@@ -84,8 +183,10 @@ async function setWorker<T extends WorkerType, P = any, V = any>(
         cleanupExistingWorker(worker.name);
         registerWorkerTask(worker.name, work);
 
-        const subscription = createWorkerSubscription(worker.name, work, workerConfiguration);
-        registeredWorkers.set(worker.name, subscription);
+        const subscriptions = [createWorkerSubscription(worker.name, work)];
+        // Native gives up on works whose result doesn't arrive within the timeout
+        if (onCancel) subscriptions.push(NativeAppEventEmitter.addListener(worker.name + "cancelled", onCancel));
+        registeredWorkers.set(worker.name, subscriptions);
 
         return NativeModules.BackgroundWorker.registerWorker(workerConfiguration, constraints || {});
     } catch (error) {
@@ -94,35 +195,24 @@ async function setWorker<T extends WorkerType, P = any, V = any>(
 }
 
 function cleanupExistingWorker(workerName: string): void {
-    const existingSubscription = registeredWorkers.get(workerName);
-    if (existingSubscription) {
-        existingSubscription.remove();
+    const existingSubscriptions = registeredWorkers.get(workerName);
+    if (existingSubscriptions) {
+        existingSubscriptions.forEach((subscription) => subscription.remove());
         registeredWorkers.delete(workerName);
     }
 }
 
-function registerWorkerTask(workerName: string, work: (data: { id: string; payload: string }) => Promise<void>): void {
+function registerWorkerTask(workerName: string, work: (data: WorkEvent) => Promise<void>): void {
     AppRegistry.registerHeadlessTask(workerName, () => work);
 }
 
 function createWorkerSubscription(
     workerName: string,
-    work: (data: { id: string; payload: string }) => Promise<void>,
-    config: { foregroundBehaviour: ForegroundBehaviour }
+    work: (data: WorkEvent) => Promise<void>
 ): EmitterSubscription {
-    return NativeAppEventEmitter.addListener(workerName, async (data) => {
-        if (AppState.currentState === "active") {
-            if (config.foregroundBehaviour === "blocking") {
-                await NativeModules.BackgroundWorker.result(data.id, JSON.stringify(null), "retry");
-                return;
-            }
-            if (config.foregroundBehaviour === "foreground") {
-                await work(data);
-                return;
-            }
-        }
-        await NativeModules.BackgroundWorker.startHeadlessTask({ ...config, ...data });
-    });
+    // Native only emits works that run in the app, headless ones start the service directly
+    return NativeAppEventEmitter.addListener(workerName, (jobs: WorkEvent[]) =>
+        Promise.all(jobs.map(work)));
 }
 
 async function enqueue<P = any>(work: { worker: string; payload?: P }): Promise<string> {
@@ -133,6 +223,49 @@ async function enqueue<P = any>(work: { worker: string; payload?: P }): Promise<
     }
 }
 
+/**
+ * Enqueues a payload to a batch worker, the batch's work value holds the payload's result at the returned index
+ */
+async function enqueueItem<P = any>(work: { worker: string; payload?: P }): Promise<{ id: string, index: number }> {
+    try {
+        return await NativeModules.BackgroundWorker.enqueueItem(work.worker, JSON.stringify(work.payload));
+    } catch (error) {
+        throw new Error(`Failed to enqueue work: ${error instanceof Error ? error.message : String(error)}`);
+    }
+}
+
+async function enqueueBatch<P = any>(work: { worker: string; payloads: P[] }): Promise<string[]> {
+    try {
+        return await NativeModules.BackgroundWorker.enqueueBatch(
+            work.worker,
+            work.payloads.map((payload) => JSON.stringify(payload))
+        );
+    } catch (error) {
+        throw new Error(`Failed to enqueue works: ${error instanceof Error ? error.message : String(error)}`);
+    }
+}
+
+async function enqueueUnique<P = any>(work: { worker: string; key: string; payload?: P; policy?: UniquePolicy }): Promise<string> {
+    try {
+        return await NativeModules.BackgroundWorker.enqueueUnique(
+            work.worker,
+            work.key,
+            JSON.stringify(work.payload),
+            work.policy || "keep"
+        );
+    } catch (error) {
+        throw new Error(`Failed to enqueue work: ${error instanceof Error ? error.message : String(error)}`);
+    }
+}
+
+/**
+ * Returns how many works of the worker haven't finished yet
+ * @param worker the worker's name
+ */
+function pending(worker: string): Promise<number> {
+    return NativeModules.BackgroundWorker.pending(worker)
+}
+
 async function cancel(id: string): Promise<void> {
     try {
         await NativeModules.BackgroundWorker.cancel(id);
@@ -145,6 +278,12 @@ export type WorkInfo<V> = {
     state: "failed" | "blocked" | "running" | "enqueued" | "cancelled" | "succeeded" | "unknown",
     attemptCount: number,
     value: V,
+    reason?: "timeout",
+}
+
+export type WorkerInfoDiff<V> = {
+    changed: (WorkInfo<V> & { id: string })[],
+    removed: string[],
 }
 
 /**
@@ -160,24 +299,192 @@ function info<V>(id: string): Promise<WorkInfo<V>> {
 }
 
 /**
- * Registers a listener to watch for changes on work's state
+ * Returns the WorkInfo object of many works at once, works that don't exist are left out
+ * @param ids requisited works' ids
+ */
+async function infoBatch<V>(ids: string[]): Promise<Record<string, WorkInfo<V>>> {
+    const _infos: Record<string, WorkInfo<string>> = await NativeModules.BackgroundWorker.infoBatch(ids)
+    const infos: Record<string, WorkInfo<V>> = {}
+    Object.keys(_infos).forEach((id) => {
+        infos[id] = { ..._infos[id], value: JSON.parse(_infos[id].value) }
+    })
+    return infos
+}
+
+/**
+ * Returns the native module's counters, keyed by metric name
+ */
+function metrics(): Promise<Record<string, number>> {
+    return NativeModules.BackgroundWorker.metrics()
+}
+
+export type ListenerOptions = {
+    minIntervalMs?: number,
+}
+
+const isFinished = (info: WorkInfo<any>) =>
+    info.state === "succeeded" || info.state === "failed" || info.state === "cancelled"
+
+type Throttle<T> = { push: (value: T, flush: boolean) => void, cancel: () => void }
+
+/**
+ * Calls deliver at most once per interval, the values in between are merged and delivered once it's over. Native
+ * throttles with the shortest interval of every subscriber, this keeps each callback to its own
+ */
+function throttle<T>(interval: number, deliver: (value: T) => void, merge: (pending: T, value: T) => T): Throttle<T> {
+    let lastDelivery = 0
+    let pending: { value: T } | undefined
+    let timer: ReturnType<typeof setTimeout> | undefined
+
+    const send = () => {
+        if (timer !== undefined) clearTimeout(timer)
+        timer = undefined
+        if (!pending) return
+        const { value } = pending
+        pending = undefined
+        lastDelivery = Date.now()
+        deliver(value)
+    }
+
+    return {
+        push: (value, flush) => {
+            pending = pending ? { value: merge(pending.value, value) } : { value }
+            const wait = lastDelivery + interval - Date.now()
+            if (flush || wait <= 0) send()
+            else if (timer === undefined) timer = setTimeout(send, wait)
+        },
+        cancel: () => {
+            if (timer !== undefined) clearTimeout(timer)
+            timer = undefined
+            pending = undefined
+        },
+    }
+}
+
+/**
+ * Keeps the latest info of each work and which works are gone, in the order they were last seen
+ */
+function mergeDiffs<V>(pending: WorkerInfoDiff<V>, diff: WorkerInfoDiff<V>): WorkerInfoDiff<V> {
+    const changed = new Map<string, WorkInfo<V> & { id: string }>()
+    pending.changed.forEach((_info) => changed.set(_info.id, _info))
+    const removed = new Set(pending.removed)
+    diff.changed.forEach((_info) => {
+        changed.delete(_info.id)
+        changed.set(_info.id, _info)
+        removed.delete(_info.id)
+    })
+    diff.removed.forEach((id) => {
+        changed.delete(id)
+        removed.add(id)
+    })
+    return { changed: Array.from(changed.values()), removed: Array.from(removed) }
+}
+
+/**
+ * Registers a listener to watch for changes on work's state, listeners of the same work share a single native
+ * observer and event subscription
  * @param id requisited work's id
  * @param callback function to be called when work's state change
+ * @param options minIntervalMs throttles the events, only the latest state is sent once the interval is over and a
+ * finished work is sent right away
  */
-function addListener<V>(id: string,callback: (info: WorkInfo<V>) => void): () => void {
-    NativeModules.BackgroundWorker.addListener(id)
-    const subscription = NativeAppEventEmitter.addListener(id+"info", (_info: WorkInfo<string>) =>
-        callback({ ..._info, value: JSON.parse(_info.value) }))
+function addListener<V>(id: string,callback: (info: WorkInfo<V>) => void, options: ListenerOptions = {}): () => void {
+    const minInterval = options.minIntervalMs || 0
+    let listener = workListeners.get(id)
+    if (!listener) {
+        const created: WorkListener = { callbacks: new Set(), subscription: undefined as any }
+        created.subscription = NativeAppEventEmitter.addListener(id+"info", (_info: WorkInfo<string>) => {
+            const info = { ..._info, value: JSON.parse(_info.value) }
+            created.last = info
+            created.callbacks.forEach((_callback) => _callback(info))
+        })
+        workListeners.set(id, created)
+        listener = created
+    }
+
+    const subscribed = listener
+    const throttled = throttle<WorkInfo<V>>(minInterval, callback, (_pending, info) => info)
+    // Native only sends the current info to the first subscriber
+    if (subscribed.last) throttled.push(subscribed.last, true)
+
+    // Wrapped so the same callback can be registered twice and removed once
+    const entry = (info: WorkInfo<any>) => throttled.push(info, isFinished(info))
+    subscribed.callbacks.add(entry)
+    NativeModules.BackgroundWorker.addListener(id, minInterval)
+
     return () => {
-        subscription.remove()
-        NativeModules.BackgroundWorker.removeListener(id)
+        if (!subscribed.callbacks.delete(entry)) return
+        throttled.cancel()
+        NativeModules.BackgroundWorker.removeListener(id, minInterval)
+        if (subscribed.callbacks.size === 0) {
+            subscribed.subscription.remove()
+            workListeners.delete(id)
+        }
+    }
+}
+
+/**
+ * Watches every work of a worker through a single native query, the callback receives only the works that changed
+ * and the ones that are gone
+ * @param name the worker's name
+ * @param callback function to be called with each batch of changes
+ * @param options minIntervalMs throttles the events, the changes in between are sent together once the interval is
+ * over and right away when a work finished
+ */
+function observeWorker<V>(
+    name: string,
+    callback: (diff: WorkerInfoDiff<V>) => void,
+    options: ListenerOptions = {}
+): () => void {
+    const minInterval = options.minIntervalMs || 0
+    let listener = workerListeners.get(name)
+    if (!listener) {
+        const created: WorkerListener = { callbacks: new Set(), works: new Map(), subscription: undefined as any }
+        created.subscription = NativeAppEventEmitter.addListener(name+"workerinfo",
+            (_diff: WorkerInfoDiff<string>) => {
+                const diff = {
+                    changed: _diff.changed.map((_info) => ({ ..._info, value: JSON.parse(_info.value) })),
+                    removed: _diff.removed,
+                }
+                diff.changed.forEach((_info) => created.works.set(_info.id, _info))
+                diff.removed.forEach((id) => created.works.delete(id))
+                created.callbacks.forEach((_callback) => _callback(diff))
+            })
+        workerListeners.set(name, created)
+        listener = created
+    }
+
+    const subscribed = listener
+    const throttled = throttle<WorkerInfoDiff<V>>(minInterval, callback, mergeDiffs)
+    // Native only sends the whole worker to the first subscriber
+    if (subscribed.works.size > 0) throttled.push({ changed: Array.from(subscribed.works.values()), removed: [] }, true)
+
+    const entry = (diff: WorkerInfoDiff<any>) => throttled.push(diff, diff.changed.some(isFinished))
+    subscribed.callbacks.add(entry)
+    NativeModules.BackgroundWorker.observeWorker(name, minInterval)
+
+    return () => {
+        if (!subscribed.callbacks.delete(entry)) return
+        throttled.cancel()
+        NativeModules.BackgroundWorker.unobserveWorker(name, minInterval)
+        if (subscribed.callbacks.size === 0) {
+            subscribed.subscription.remove()
+            workerListeners.delete(name)
+        }
     }
 }
 
 export default {
     setWorker,
     enqueue,
+    enqueueItem,
+    enqueueBatch,
+    enqueueUnique,
+    pending,
     cancel,
     info,
+    infoBatch,
     addListener,
+    observeWorker,
+    metrics,
 } as const;
\ No newline at end of file